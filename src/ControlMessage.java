@@ -0,0 +1,178 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary format of the control messages clients send to the server, shared by the client and the
+ * benchmark that write them and the server that reads them, see ServerRequest. Every message starts
+ * with the version of the format, the type of the message and the session it belongs to, followed by
+ * fixed width fields in network byte order. Strings and lists of packet ranges are prefixed with
+ * their length, so a file can have any name, even that of a message type. The server tells transfers
+ * apart by the address and port of the client along with the session, so one socket may run several
+ * transfers at once, in which case each request sets TAGGED and the server puts the session after the
+ * header of every packet it sends for it as well.
+ *
+ * A request carries the packet size (2 bytes), the flags (1), the congestion control (1, see
+ * CONTROLS), the window (4, at most MAX_WINDOW), the number of streams (1), the data and parity
+ * packets of a block of error correction (1 each), the offset and length of the range (8 each), the
+ * dictionary, the packets to send and the filename. A failure carries the packets the client is missing, where no ranges at
+ * all ask for every packet. An acknowledgement carries the cumulative packet number (4) and the
+ * packets received beyond it. A success carries nothing else, and neither does an abort, which a
+ * client sends when it gives up on a transfer so that the server stops it instead of sending the file
+ * again.
+ */
+class ControlMessage {
+  public static final byte VERSION = 1;
+  public static final byte REQUEST = 1;
+  public static final byte FAILURE = 2;
+  public static final byte ACKNOWLEDGE = 3;
+  public static final byte SUCCESS = 4;
+  public static final byte ABORT = 5;
+  public static final int HEADER_LENGTH = 6;
+  // Fixed width fields of a request, ahead of its dictionary.
+  public static final int REQUEST_LENGTH = 27;
+  // Largest message, which is as much as the server receives at once.
+  public static final int MAX_LENGTH = 1400;
+  public static final int RANGE_LENGTH = 8;
+  // Ranges a failure or an acknowledgement carries at most, well inside a message.
+  public static final int MAX_RANGES = 160;
+  // End of a range that runs until the last packet.
+  public static final int OPEN = -1;
+  // Flags of a request.
+  public static final int VERIFY = 1;
+  public static final int MULTICAST = 2;
+  public static final int DEFLATE = 4;
+  public static final int SIGN = 8;
+  public static final int TAGGED = 16;
+  // Largest window of a request, which both the client and the server hold requests to.
+  public static final int MAX_WINDOW = 1024;
+  // Congestion controls by number, where 0 is none.
+  public static final String[] CONTROLS = { null, "reno", "vegas" };
+
+  /**
+   * Writes a request.
+   * @param session Session of the transfer.
+   * @param limit Packet size.
+   * @param flags Flags of the request, e.g. VERIFY | SIGN.
+   * @param control Number of the congestion control, see control.
+   * @param window Maximum number of packets in flight, or 0 for none.
+   * @param streams Number of streams to split the file into.
+   * @param data Data packets of a block of error correction, or 0 for none.
+   * @param parity Parity packets of a block of error correction.
+   * @param offset Offset of the range of the file to send.
+   * @param length Length of the range, or -1 for the rest of the file.
+   * @param dictionary Path of the dictionary to deflate with, or null for none.
+   * @param packets Ranges of packets to send, or null for every packet.
+   * @param filename Name of the file.
+   * @return Message.
+   */
+  public static byte[] request(int session, int limit, int flags, int control, int window, int streams, int data, int parity, long offset, long length, String dictionary, int[] packets, String filename) {
+    byte[] path = dictionary != null ? dictionary.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+    int ranges = packets != null ? packets.length / 2 : 0;
+    ByteBuffer buffer = header(REQUEST_LENGTH + 2 + path.length + 2 + ranges * RANGE_LENGTH + 2 + name.length, REQUEST, session);
+    buffer.putShort((short) limit).put((byte) flags).put((byte) control).putInt(window);
+    buffer.put((byte) streams).put((byte) data).put((byte) parity).putLong(offset).putLong(length);
+    buffer.putShort((short) path.length).put(path);
+    ranges(buffer, packets);
+    buffer.putShort((short) name.length).put(name);
+    return buffer.array();
+  }
+
+  /**
+   * Writes a failure.
+   * @param session Session of the transfer.
+   * @param ranges Ranges of packets the client is missing, or null for every packet.
+   * @return Message.
+   */
+  public static byte[] failure(int session, int[] ranges) {
+    ByteBuffer buffer = header(2 + (ranges != null ? ranges.length / 2 : 0) * RANGE_LENGTH, FAILURE, session);
+    return ranges(buffer, ranges).array();
+  }
+
+  /**
+   * Writes an acknowledgement.
+   * @param session Session of the transfer.
+   * @param cumulative Every packet up to and including this number has been received.
+   * @param ranges Ranges of packets received beyond it.
+   * @return Message.
+   */
+  public static byte[] acknowledge(int session, int cumulative, int[] ranges) {
+    ByteBuffer buffer = header(4 + 2 + ranges.length / 2 * RANGE_LENGTH, ACKNOWLEDGE, session);
+    return ranges(buffer.putInt(cumulative), ranges).array();
+  }
+
+  /**
+   * Writes a success.
+   * @param session Session of the transfer.
+   * @return Message.
+   */
+  public static byte[] success(int session) {
+    return header(0, SUCCESS, session).array();
+  }
+
+  /**
+   * Writes an abort.
+   * @param session Session of the transfer.
+   * @return Message.
+   */
+  public static byte[] abort(int session) {
+    return header(0, ABORT, session).array();
+  }
+
+  /**
+   * Returns the number of a congestion control.
+   * @param name Name of the congestion control, or null for none.
+   * @return Number of the congestion control.
+   * @throws Exception If the congestion control is unknown.
+   */
+  public static int control(String name) throws Exception {
+    if (name == null) { return 0; }
+    for (int i = 1; i < CONTROLS.length; i++) {
+      if (CONTROLS[i].equals(name)) { return i; }
+    }
+    throw new Exception("Unknown congestion control " + name);
+  }
+
+  /**
+   * Formats ranges for a log, e.g. "2-4,9,12-".
+   * @param ranges First and last packet number of every range, one after the other.
+   * @return Formatted ranges.
+   */
+  public static String format(int[] ranges) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < ranges.length; i += 2) {
+      builder.append(i == 0 ? "" : ",").append(ranges[i]);
+      if (ranges[i + 1] == OPEN) {
+        builder.append("-");
+      } else if (ranges[i + 1] != ranges[i]) {
+        builder.append("-").append(ranges[i + 1]);
+      }
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Starts a message.
+   * @param body Length of the message after its header.
+   * @param type Type of the message.
+   * @param session Session of the transfer.
+   * @return Buffer of exactly the length of the message, positioned after its header.
+   */
+  private static ByteBuffer header(int body, byte type, int session) {
+    return ByteBuffer.allocate(HEADER_LENGTH + body).put(VERSION).put(type).putInt(session);
+  }
+
+  /**
+   * Writes the number of ranges followed by the first and last packet number of each.
+   * @param buffer Buffer to write to.
+   * @param ranges First and last packet number of every range, one after the other, or null for none.
+   * @return The given buffer.
+   */
+  private static ByteBuffer ranges(ByteBuffer buffer, int[] ranges) {
+    buffer.putShort((short) (ranges != null ? ranges.length / 2 : 0));
+    if (ranges != null) {
+      for (int bound : ranges) { buffer.putInt(bound); }
+    }
+    return buffer;
+  }
+}
@@ -0,0 +1,288 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Benchmark that serves many concurrent windowed transfers over loopback once per server mode, and
+ * prints how long they took and how many platform threads the server added at its peak. It then
+ * measures how many bytes the send path allocates per packet for every kind of packet source.
+ * Usage: java JeanBenchmark [sessions] [file_bytes] [packet_size] [window]
+ */
+public class JeanBenchmark {
+  private static final long TIME_LIMIT = 60_000_000_000L;
+  private static final long WIND_DOWN = 10_000_000_000L;
+  // Rounds of the allocation measurement, which must be a multiple of four.
+  private static final int ALLOCATION_ROUNDS = 400;
+  // Acknowledgements dispatched by the allocation measurement, half of which warm up the dispatcher.
+  private static final int ACKNOWLEDGEMENTS = 200_000;
+  private static final long IDLE = 120_000_000_000L;
+
+  public static void main(String args[]) throws Exception {
+    int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    int size = args.length > 1 ? Integer.parseInt(args[1]) : 256 * 1024;
+    int limit = args.length > 2 ? Integer.parseInt(args[2]) : 1400;
+    int window = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+    byte[] data = new byte[size];
+    new Random(13231).nextBytes(data);
+    Path file = Files.createTempFile("benchmark", ".bin");
+    file.toFile().deleteOnExit();
+    Files.write(file, data);
+    PrintStream out = System.out;
+    // Every mode serves the file from the same cache, which the first run warms up.
+    ServerFileCache cache = new ServerFileCache(64 << 20);
+    cache.start();
+    ServerFileStore store = new ServerFileStore(false, cache);
+    // Sessions complete long before they could go idle, so the timeout only has to be out of the way.
+    ServerTimingWheel wheel = new ServerTimingWheel(100_000_000L);
+    wheel.start();
+    // Without virtual threads the virtual mode runs on platform threads, which its row is marked with.
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    boolean virtual = new ServerThreadScheduler(true).isVirtual();
+    System.setOut(out);
+    out.println("Java " + Runtime.version() + ", " + Runtime.getRuntime().availableProcessors() + " processors");
+    out.println("mode      sessions  completed  millis  MB/s     peak threads");
+    for (String mode : new String[] { "platform", "virtual", "reactor" }) {
+      // The server logs every packet it sends, which would drown out the benchmark.
+      System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+      long[] result = run(mode, limit, window, file.toString(), sessions, store, wheel);
+      System.setOut(out);
+      double seconds = result[1] / 1e9;
+      String label = mode.equals("virtual") && !virtual ? "virtual*" : mode;
+      out.printf("%-9s %-9d %-10d %-7d %-8.1f %d%n", label, sessions, result[0], result[1] / 1_000_000, (double) result[0] * size / seconds / 1e6, result[2]);
+    }
+    if (!virtual) { out.println("* virtual threads need Java 21 or newer, so this run used platform threads"); }
+    out.println();
+    out.println("source    bytes allocated per packet sent");
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    String[] sources = { "file", "mapped", "framed", "checked" };
+    double[] allocated = new double[sources.length];
+    for (int i = 0; i < sources.length; i++) {
+      ServerFileStore sourceStore = i == 2 ? store : new ServerFileStore(i == 1, null);
+      allocated[i] = allocation(sourceStore.open(file.toString(), limit, i == 3));
+    }
+    double dispatched = dispatch(store, wheel, file.toString(), limit);
+    System.setOut(out);
+    for (int i = 0; i < sources.length; i++) { out.printf("%-9s %.3f%n", sources[i], allocated[i]); }
+    out.println();
+    out.printf("bytes allocated per acknowledgement dispatched: %.3f%n", dispatched);
+    System.exit(0);
+  }
+
+  /**
+   * Measures the bytes the send path allocates for every packet, by streaming every packet of the
+   * source and only its first packet from the calling thread and comparing the two. Whatever a stream
+   * allocates once, such as its log lines on start and stop, cancels out.
+   * @param source Source to stream packets from.
+   * @return Bytes allocated per packet once warmed up.
+   * @throws IOException If the channel cannot be opened.
+   */
+  private static double allocation(ServerPacketSource source) throws IOException {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    InetSocketAddress sink = new InetSocketAddress(InetAddress.getLoopbackAddress(), 9);
+    long all = 0;
+    long first = 0;
+    try (DatagramChannel channel = DatagramChannel.open()) {
+      channel.configureBlocking(false);
+      ServerPacer pacer = new ServerPacer(0, 0, 0);
+      ServerTokenBucket bucket = pacer.acquire(sink.getAddress());
+      BitSet packets = new BitSet();
+      for (int round = 0; round < ALLOCATION_ROUNDS; round++) {
+        packets.set(1, round % 2 == 0 ? source.count() + 1 : 2);
+        ServerRequestStream stream = new ServerRequestStream(source, channel, sink, packets, pacer, bucket);
+        long before = threads.getCurrentThreadAllocatedBytes();
+        while (stream.step(System.nanoTime()) != ServerStream.DONE) {}
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        // The first half of the rounds warms up the send path.
+        if (round >= ALLOCATION_ROUNDS / 2) {
+          if (round % 2 == 0) { all += allocated; } else { first += allocated; }
+        }
+        packets.clear();
+      }
+    } finally {
+      source.close();
+    }
+    return (double) (all - first) / (ALLOCATION_ROUNDS / 4) / (source.count() - 1);
+  }
+
+  /**
+   * Measures the bytes the server allocates for every acknowledgement it dispatches, the most frequent
+   * control message, by handling acknowledgements of a running transfer from the calling thread. The
+   * transfer is a plain stream, so the acknowledgements go no further than finding its controller.
+   * @param store Store the transfer opens its file from.
+   * @param wheel Timing wheel to time out idle transfers on.
+   * @param filename File the transfer sends.
+   * @param limit Packet size of the transfer.
+   * @return Bytes allocated per acknowledgement once warmed up.
+   * @throws Exception If the transfer cannot be started.
+   */
+  private static double dispatch(ServerFileStore store, ServerTimingWheel wheel, String filename, int limit) throws Exception {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    InetSocketAddress client = new InetSocketAddress(InetAddress.getLoopbackAddress(), 9);
+    try (DatagramChannel channel = DatagramChannel.open()) {
+      ServerDispatcher dispatcher = new ServerDispatcher(channel, new ServerPacer(0, 0, 0), new ServerThreadScheduler(false), store, null, wheel, IDLE);
+      ServerRequest request = new ServerRequest();
+      dispatcher.handle(request.read(ByteBuffer.wrap(ControlMessage.request(1, limit, 0, 0, 0, 1, 0, 0, 0, -1, null, null, filename)), client));
+      ByteBuffer acknowledgement = ByteBuffer.wrap(ControlMessage.acknowledge(1, 1, new int[0]));
+      long before = 0;
+      for (int round = 0; round < ACKNOWLEDGEMENTS; round++) {
+        if (round == ACKNOWLEDGEMENTS / 2) { before = threads.getCurrentThreadAllocatedBytes(); }
+        dispatcher.handle(request.read(acknowledgement.clear(), client));
+      }
+      long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+      dispatcher.handle(request.read(ByteBuffer.wrap(ControlMessage.success(1)), client));
+      return (double) allocated / (ACKNOWLEDGEMENTS / 2);
+    }
+  }
+
+  /**
+   * Runs every session against a fresh server in the given mode.
+   * @param mode Either "platform", "virtual" or "reactor".
+   * @param limit Packet size every session requests.
+   * @param window Window every session requests.
+   * @param filename File every session requests.
+   * @param sessions Number of concurrent sessions.
+   * @param store Store the server opens the requested file from.
+   * @param wheel Timing wheel the server times out idle sessions on.
+   * @return Completed sessions, elapsed nanoseconds and peak number of platform threads added.
+   * @throws Exception If the server or a session cannot be set up.
+   */
+  private static long[] run(String mode, int limit, int window, String filename, int sessions, ServerFileStore store, ServerTimingWheel wheel) throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    int baseline = threads.getThreadCount();
+    DatagramChannel channel = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    // Every session acknowledges every packet, so give the server room to queue them up.
+    channel.setOption(StandardSocketOptions.SO_RCVBUF, 8 << 20);
+    InetSocketAddress server = (InetSocketAddress) channel.getLocalAddress();
+    ServerPacer pacer = new ServerPacer(0, 0, 0);
+    if (mode.equals("reactor")) {
+      ServerReactor reactor = new ServerReactor(channel, 2);
+      reactor.start(new ServerDispatcher(channel, pacer, reactor, store, null, wheel, IDLE));
+    } else {
+      ServerThreadScheduler scheduler = new ServerThreadScheduler(mode.equals("virtual"));
+      ServerThread thread = new ServerThread(channel, new ServerDispatcher(channel, pacer, scheduler, store, null, wheel, IDLE));
+      thread.setDaemon(true);
+      thread.start();
+    }
+    threads.resetPeakThreadCount();
+    Selector selector = Selector.open();
+    ByteBuffer buffer = ByteBuffer.allocate(65536);
+    long start = System.nanoTime();
+    BenchmarkSession[] clients = new BenchmarkSession[sessions];
+    for (int i = 0; i < sessions; i++) {
+      byte[] request = ControlMessage.request(i, limit, 0, 0, window, 1, 0, 0, 0, -1, null, null, filename);
+      clients[i] = new BenchmarkSession(selector, server, request, i);
+    }
+    int completed = 0;
+    long checked = start;
+    while (completed < sessions && System.nanoTime() - start < TIME_LIMIT) {
+      selector.select(100);
+      for (SelectionKey key : selector.selectedKeys()) {
+        if (((BenchmarkSession) key.attachment()).receive(buffer)) { completed++; }
+      }
+      selector.selectedKeys().clear();
+      long now = System.nanoTime();
+      if (now - checked > 100_000_000L) {
+        for (BenchmarkSession client : clients) { client.check(now); }
+        checked = now;
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    int peak = threads.getPeakThreadCount() - baseline;
+    selector.close();
+    channel.close();
+    // Streams notice the closed channel the next time they send, so let them wind down before the
+    // next run counts its threads.
+    for (long wait = System.nanoTime(); threads.getThreadCount() > baseline && System.nanoTime() - wait < WIND_DOWN; ) {
+      Thread.sleep(100);
+    }
+    return new long[] { completed, elapsed, peak };
+  }
+
+  /**
+   * Client side of a single benchmark transfer, which acknowledges packets cumulatively until the last
+   * packet of a windowed stream has arrived. A session that stalls asks again for everything it is
+   * missing, in case its request or the end of its stream was dropped.
+   */
+  static class BenchmarkSession {
+    private static final long STALL = 1_000_000_000L;
+    private static final int[] NONE = {};
+    private DatagramChannel channel;
+    private InetSocketAddress server;
+    private byte[] request;
+    private int session;
+    private long updated = System.nanoTime();
+    private int cumulative;
+    private int max;
+    private BitSet received = new BitSet();
+
+    /**
+     * Creates a new BenchmarkSession and sends its request.
+     * @param selector Selector to register the session's channel with.
+     * @param server Address of the server.
+     * @param request Request to send, see ControlMessage.
+     * @param session Session the request belongs to.
+     * @throws IOException If the channel cannot be opened or the request cannot be sent.
+     */
+    public BenchmarkSession(Selector selector, InetSocketAddress server, byte[] request, int session) throws IOException {
+      this.server = server;
+      this.request = request;
+      this.session = session;
+      this.channel = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_READ, this);
+      send(request);
+    }
+
+    /**
+     * Receives every packet waiting on the channel.
+     * @param buffer Buffer to receive into.
+     * @return True once every packet has been received.
+     * @throws IOException If the channel cannot be read.
+     */
+    public boolean receive(ByteBuffer buffer) throws IOException {
+      while (channel.receive(buffer.clear()) != null) {
+        updated = System.nanoTime();
+        int index = buffer.getInt(0);
+        if (buffer.get(4) != 0) { max = index; }
+        received.set(index);
+        while (received.get(cumulative + 1)) { cumulative++; }
+        if (max != 0 && cumulative == max) {
+          send(ControlMessage.success(session));
+          channel.close();
+          return true;
+        }
+        send(ControlMessage.acknowledge(session, cumulative, NONE));
+      }
+      return false;
+    }
+
+    /**
+     * Asks for the request or the missing packets again if nothing has arrived for a while.
+     * @param now Current time in nanoseconds.
+     * @throws IOException If the message cannot be sent.
+     */
+    public void check(long now) throws IOException {
+      if (!channel.isOpen() || now - updated < STALL) { return; }
+      send(received.isEmpty() ? request : ControlMessage.failure(session, new int[] { cumulative + 1, ControlMessage.OPEN }));
+      updated = now;
+    }
+
+    /**
+     * Sends a message to the server.
+     * @param message Message to send, see ControlMessage.
+     * @throws IOException If the message cannot be sent.
+     */
+    private void send(byte[] message) throws IOException {
+      channel.send(ByteBuffer.wrap(message), server);
+    }
+  }
+}
@@ -1,7 +1,19 @@
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Class representing a client request from the given input.
@@ -9,116 +21,1370 @@ import java.util.*;
 class ClientRequest {
   private int timeout;
   private int size;
+  private String[] filenames;
+  private URL target;
+
+  /**
+   * Creates a ClientRequest from a string input.
+   * @param input Input read from the CLI.
+   * @throws Exception If the input is incorrect.
+   */
+  public ClientRequest(String input) throws Exception {
+    String[] arguments =  input.split(" ", 4);
+    if (arguments.length < 4) {
+      throw new Exception("Input must contain four separate arguments");
+    }
+    size = Integer.parseInt(arguments[0]);
+    // Throw an error if the packet size is larger or equal to 1400.
+    if (size >= 1400) {
+      throw new Exception("Packet size must be lower than 1400");
+    }
+    timeout = Integer.parseInt(arguments[1]);
+    // Several files separated by commas are fetched at once over the same socket.
+    filenames = arguments[2].split(",");
+    target = new URL("http://" + arguments[3]);
+  }
+
+  /**
+   * Getter for the payload size parameter.
+   * @return UDP payload size.
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Getter for the target URL for the HTTP request.
+   * @return UTL HTTP GET target.
+   */
+  public URL getTarget() {
+    return target;
+  }
+
+  /**
+   * Getter for the UDP request timeout.
+   * @return UDP request timeout in milliseconds.
+   */
+  public int getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * Getter for the filenames to retrieve in the UDP request.
+   * @return Filenames of local server to retrieve.
+   */
+  public String[] getFilenames() {
+    return filenames;
+  }
+}
+
+/**
+ * Class representing the options the client was started with, which apply to every request.
+ */
+class ClientConfig {
+  // Largest preset dictionary, which must match ServerFileStore.DICTIONARY_LIMIT.
+  private static final int DICTIONARY_LIMIT = 32 * 1024;
+  private String control;
+  private String stream;
+  private String output;
+  private String fec;
+  private ReedSolomon code;
+  private String dictionary;
+  // Contents of the dictionary, which the server reads from the same file.
+  private byte[] preset;
+  private boolean compress;
+  private boolean verify;
+  // Range of every file to fetch, where a length of -1 runs until the end of the file.
+  private long offset;
+  private long length = -1;
+  private boolean resume;
+  // File the requested file is matched against, so that only the packets it lacks are fetched.
+  private String basis;
+  private boolean multicast;
+  private int streams;
+  private int window;
+
+  /**
+   * Creates a ClientConfig from the command line arguments.
+   * @param args Command line arguments, e.g. "--window 64".
+   * @throws Exception If an argument is unknown or incorrect.
+   */
+  public ClientConfig(String[] args) throws Exception {
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--window": window = Integer.parseInt(args[++i]);
+          break;
+        case "--cc": control = args[++i];
+          break;
+        case "--stream": stream = args[++i];
+          break;
+        case "--output": output = args[++i];
+          break;
+        case "--streams": streams = Integer.parseInt(args[++i]);
+          break;
+        case "--multicast": multicast = true;
+          break;
+        case "--fec": fec = args[++i];
+          break;
+        case "--compress": compress = true;
+          break;
+        case "--verify": verify = true;
+          break;
+        case "--offset": offset = Long.parseLong(args[++i]);
+          break;
+        case "--length": length = Long.parseLong(args[++i]);
+          break;
+        case "--resume": resume = true;
+          break;
+        case "--delta": basis = args[++i];
+          break;
+        case "--dict": dictionary = args[++i];
+          compress = true;
+          break;
+        default: throw new Exception("Unknown argument " + args[i]);
+      }
+    }
+    if (fec != null) {
+      String[] split = fec.split(",");
+      if (split.length != 2) {
+        throw new Exception("Error correction must be given as data and parity packets per block, e.g. 8,2");
+      }
+      code = new ReedSolomon(Integer.parseInt(split[0]), Integer.parseInt(split[1]));
+    }
+    ControlMessage.control(control);
+    if (window < 0 || window > ControlMessage.MAX_WINDOW) {
+      throw new Exception("Window must be between 0 and " + ControlMessage.MAX_WINDOW);
+    }
+    if (stream != null && output != null) {
+      throw new Exception("Files are either streamed or written to an output, not both");
+    }
+    // Packets beyond the reorder buffer of a streamed file are dropped, so the server is kept from
+    // running further ahead than it holds, which a stream sending back to back or split up would. Without
+    // a window of its own, congestion control sizes the window up to the buffer, since a fixed window
+    // that large overruns the socket long before it overruns the buffer.
+    if (stream != null) {
+      if (window == 0 && control == null) { control = "reno"; }
+      if (window == 0) { window = ClientStreamAssembly.REORDER_LIMIT; }
+      if (window > ClientStreamAssembly.REORDER_LIMIT) {
+        throw new Exception("A streamed file is sent with a window of at most " + ClientStreamAssembly.REORDER_LIMIT + " packets");
+      }
+      if (streams > 1) {
+        throw new Exception("A streamed file is sent by a single stream, since split streams run ahead of the reorder buffer");
+      }
+    }
+    // A deflated file only inflates in order, so it cannot go straight to its place in a mapped output.
+    if (compress && output != null) {
+      throw new Exception("Compressed files are streamed or printed, not written to an output");
+    }
+    if (dictionary != null) {
+      preset = preset(Paths.get(dictionary));
+    }
+    if (offset < 0) {
+      throw new Exception("Offset must not be negative");
+    }
+    if (resume && stream == null && output == null) {
+      throw new Exception("Only a file that is streamed or written to an output can be resumed");
+    }
+    if (resume && offset > 0) {
+      throw new Exception("A resumed file starts where the file written so far ends, not at an offset");
+    }
+    if (compress && (resume || offset > 0 || length >= 0)) {
+      throw new Exception("Compressed files are only sent whole");
+    }
+    if (basis != null) {
+      // Packets the basis holds are filled in out of order, ahead of the ones fetched.
+      if (stream != null) {
+        throw new Exception("A delta is printed or written to an output, not streamed");
+      }
+      if (compress || resume || offset > 0 || length >= 0) {
+        throw new Exception("A delta is always taken of the whole file as it is");
+      }
+      if (acknowledges()) {
+        throw new Exception("A delta fetches selected packets, which only plain streams send");
+      }
+      if (output != null && Paths.get(output).toAbsolutePath().normalize().equals(Paths.get(basis).toAbsolutePath().normalize())) {
+        throw new Exception("A delta cannot be written over the file it is taken against");
+      }
+    }
+  }
+
+  /**
+   * Checks that the given number of files can be fetched at once. Files fetched at once are each
+   * printed once complete, since they cannot all be streamed or written to one output, and none of
+   * them is a delta, whose signature needs a socket of its own.
+   * @param files Number of files to fetch at once.
+   * @throws Exception If the files cannot be fetched at once.
+   */
+  public void parallel(int files) throws Exception {
+    if (files > 1 && (stream != null || output != null || basis != null)) {
+      throw new Exception("Several files at once are only printed, not streamed, written to an output or fetched as a delta");
+    }
+  }
+
+  /**
+   * Reads the preset dictionary held by a file the way the server does, which is only its last
+   * DICTIONARY_LIMIT bytes, since the deflater cannot refer back any further.
+   * @param path Path of the dictionary file.
+   * @return Dictionary.
+   * @throws IOException If the file cannot be read or is not a regular file.
+   */
+  private static byte[] preset(Path path) throws IOException {
+    if (!Files.isRegularFile(path)) {
+      throw new IOException("Dictionary " + path + " is not a regular file");
+    }
+    try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = file.size();
+      ByteBuffer content = ByteBuffer.allocate((int) Math.min(size, DICTIONARY_LIMIT));
+      long start = size - content.capacity();
+      while (content.hasRemaining() && file.read(content, start + content.position()) != -1) {}
+      return Arrays.copyOf(content.array(), content.position());
+    }
+  }
+
+  /**
+   * Returns the offset in the file a request starts at. A resumed request starts where the file written
+   * so far ends, since streamed and mapped files only ever keep the contiguous part from their start.
+   * @return Offset in bytes.
+   * @throws IOException If the size of the file written so far cannot be read.
+   */
+  public long offset() throws IOException {
+    if (!resume) { return offset; }
+    Path path = Paths.get(stream != null ? stream : output);
+    return Files.exists(path) ? Files.size(path) : 0;
+  }
+
+  /**
+   * Getter for the window size, the maximum number of unacknowledged packets the server keeps in
+   * flight. A window of 0 lets the server send every packet back to back.
+   * @return Window size in packets.
+   */
+  public int getWindow() {
+    return window;
+  }
+
+  /**
+   * Returns if the server is asked for a windowed stream, which needs received packets acknowledged.
+   * Congestion control always streams with a window.
+   * @return If received packets should be acknowledged.
+   */
+  public boolean acknowledges() {
+    return window > 0 || control != null;
+  }
+
+  /**
+   * Returns if every packet ends in a checksum and the file is checked against its digest.
+   * @return If packets and the file are verified.
+   */
+  public boolean verifies() {
+    return verify;
+  }
+
+  /**
+   * Writes the request for a file with every option, see ControlMessage. Packets may come from several
+   * ports of the server when the file is split across streams, so replies always go to the port the
+   * request was sent to. The dictionary is named by its path, which the server reads it from.
+   * @param session Session of the transfer.
+   * @param size Packet size the file is requested with.
+   * @param offset Offset in the file the request starts at, see offset.
+   * @param filename Name of the file.
+   * @param sign If the signature of the file is requested instead, for a delta.
+   * @param packets Ranges of packets to request, or null for every packet.
+   * @param tagged If every packet should carry the session, for a socket shared by several transfers.
+   * @return Request.
+   * @throws Exception If the congestion control is unknown.
+   */
+  public byte[] request(int session, int size, long offset, String filename, boolean sign, int[] packets, boolean tagged) throws Exception {
+    int flags = (verify ? ControlMessage.VERIFY : 0) | (multicast ? ControlMessage.MULTICAST : 0) | (compress ? ControlMessage.DEFLATE : 0) | (sign ? ControlMessage.SIGN : 0) | (tagged ? ControlMessage.TAGGED : 0);
+    int data = code != null ? code.getData() : 0;
+    int parity = code != null ? code.getParity() : 0;
+    return ControlMessage.request(session, size, flags, ControlMessage.control(control), window, Math.max(streams, 1), data, parity, offset, length, dictionary, packets, filename);
+  }
+
+  /**
+   * Creates the decoder that rebuilds lost packets from parity packets, if error correction is on.
+   * @param assembly Assembly the file is put back together in.
+   * @param size Packet size the file is requested with.
+   * @param tagged If every packet carries the session.
+   * @return Decoder, or null without error correction.
+   */
+  public ClientFecDecoder decoder(ClientAssembly assembly, int size, boolean tagged) {
+    return code != null ? new ClientFecDecoder(code, assembly, limit(size, tagged)) : null;
+  }
+
+  /**
+   * Returns the packet size limit the payload is framed with, which leaves out the checksum and the
+   * session that UDPThread takes off every packet.
+   * @param size Packet size the file is requested with.
+   * @param tagged If every packet carries the session.
+   * @return Packet size limit without the checksum and the session.
+   */
+  private int limit(int size, boolean tagged) {
+    return size - (verify ? ClientAssembly.CHECKSUM_LENGTH : 0) - (tagged ? ClientAssembly.SESSION_LENGTH : 0);
+  }
+
+  /**
+   * Creates the delta that fills in a requested file from the file given to match it against.
+   * @return Delta, or null if every file is fetched as a whole.
+   */
+  public ClientDelta delta() {
+    return basis != null ? new ClientDelta(basis) : null;
+  }
+
+  /**
+   * Creates the assembly the signature of a requested file is kept in, for a delta.
+   * @param size Packet size the file is requested with.
+   * @return Assembly for the signature.
+   */
+  public ClientSignatureAssembly signature(int size) {
+    // A delta has its socket to itself, so the packets of its signature carry no session.
+    ClientSignatureAssembly assembly = new ClientSignatureAssembly(limit(size, false));
+    if (verify) { assembly.verify(); }
+    return assembly;
+  }
+
+  /**
+   * Creates the assembly a requested file is put back together in. A file is kept in memory and
+   * printed once complete, unless it is streamed to a file in order or written to a mapped output
+   * file in any order as it arrives. A compressed file is inflated as its packets come in order. A
+   * range of a file is appended to a resumed stream and written at its own offset in an output.
+   * @param size Packet size the file is requested with.
+   * @param offset Offset in the file the request starts at, see offset.
+   * @param tagged If every packet carries the session.
+   * @return Assembly for the file.
+   * @throws IOException If the file to write to cannot be created.
+   */
+  public ClientAssembly assembly(int size, long offset, boolean tagged) throws IOException {
+    ClientInflater inflater = compress ? new ClientInflater(preset) : null;
+    ClientAssembly assembly;
+    if (stream != null) {
+      assembly = new ClientStreamAssembly(limit(size, tagged), stream, inflater, resume);
+    } else if (output != null) {
+      assembly = new ClientMappedAssembly(limit(size, tagged), output, offset);
+    } else {
+      assembly = new ClientBufferAssembly(limit(size, tagged), inflater);
+    }
+    if (verify) { assembly.verify(); }
+    return assembly;
+  }
+}
+
+/**
+ * Thread that handles timing out and retrying the UDP thread.
+ */
+class UDPTimeoutThread extends Thread {
+  private static final int ROUNDS = 3;
+  private DatagramSocket socket;
+  private DatagramPacket packet;
+  private InetAddress server;
+  // Receiver of a socket shared with other transfers, or null if the transfer has it to itself.
+  private UDPReceiver receiver;
+  private ClientConfig config;
+  private String filename;
+  private int timeout;
+  private int size;
+  private long offset;
+  // Session every message of the transfer carries, picked at random.
+  private int session = new Random().nextInt();
+
+  /**
+   * Creates a UDPTimeoutThread.
+   * @param socket DatagramSocket to send and receive requests on.
+   * @param receiver Receiver that hands out the packets of a socket shared with other transfers, or
+   * null if the transfer has the socket to itself.
+   * @param filename Filename to retrieve on the local UDP server.
+   * @param size Payload size each UDP packet should have.
+   * @param timeout Timeout in milliseconds for the request to complete.
+   * @param config Options to make the request with.
+   * @throws IOException If the localhost setting cannot be found on this machine or the file to resume
+   * cannot be read.
+   */
+  public UDPTimeoutThread(DatagramSocket socket, UDPReceiver receiver, String filename, int size, int timeout, ClientConfig config) throws IOException {
+    this.offset = config.offset();
+    this.server = InetAddress.getLocalHost();
+    this.filename = filename;
+    this.timeout = timeout;
+    this.socket = socket;
+    this.receiver = receiver;
+    this.config = config;
+    this.size = size;
+  }
+
+  /**
+   * Implementation of the Thread.run function.
+   */
+  public void run() {
+    try { process(); } catch(Exception error) { error.printStackTrace(); }
+  }
+
+  /**
+   * Requests the file, after its signature when it is fetched as a delta. The packets of the file the
+   * basis of the delta holds are filled in before the rest are asked for, see ClientDelta.
+   * @throws Exception If anything bad happens.
+   */
+  private void process() throws Exception {
+    ClientDelta delta = config.delta();
+    if (delta == null) {
+      boolean tagged = receiver != null;
+      transfer(socket, receiver, config.request(session, size, offset, filename, false, null, tagged), config.assembly(size, offset, tagged));
+      return;
+    }
+    ClientSignatureAssembly signature = config.signature(size);
+    // The signature comes over a socket of its own, so that none of its packets arriving late can be
+    // taken for a packet of the file.
+    try (DatagramSocket signing = new DatagramSocket()) {
+      if (!transfer(signing, null, config.request(session, size, offset, filename, true, null, false), signature)) { return; }
+    }
+    ClientAssembly assembly = config.assembly(size, offset, false);
+    int[] packets;
+    try {
+      packets = delta.match(signature.signature(), assembly);
+    } catch (Exception error) {
+      assembly.close();
+      throw error;
+    }
+    transfer(socket, null, config.request(session, size, offset, filename, false, packets, false), assembly);
+  }
+
+  /**
+   * Starts the UDPThread for a request and asks the server to repair the missing packets every time
+   * the timeout occurs before all bytes are read. The timeout doubles on every repair round.
+   * @param socket DatagramSocket to send the request and receive the file on.
+   * @param receiver Receiver of the socket if it is shared with other transfers, or null.
+   * @param request Request, see ClientConfig.request.
+   * @param assembly Assembly to put the file back together in.
+   * @return If the file arrived completely.
+   * @throws Exception If anything bad happens.
+   */
+  private boolean transfer(DatagramSocket socket, UDPReceiver receiver, byte[] request, ClientAssembly assembly) throws Exception {
+    packet = new DatagramPacket(request, request.length, server, 13231);
+    UDPThread thread = new UDPThread(socket, receiver, packet, session, assembly, config.decoder(assembly, size, receiver != null), config.acknowledges(), config.verifies());
+    System.out.println("[UDP] start");
+    thread.start();
+    int wait = timeout;
+    for (int round = 0; round < ROUNDS; round++) {
+      thread.join(wait);
+      if (thread.successful()) { return true; }
+      // A file that does not match its digest is given up on right away, aborting it without a retry.
+      if (!thread.isAlive()) { break; }
+      int[] missing = thread.missing();
+      System.out.println("[UDP] timeout");
+      System.out.println("[UDP] retry " + (missing == null ? "all" : ControlMessage.format(missing)));
+      send(socket, ControlMessage.failure(session, missing));
+      wait *= 2;
+    }
+    thread.join(wait);
+    thread.shutdown();
+    // Let the thread notice the shutdown, so that whatever it writes the file to is released.
+    thread.join();
+    // A failure would ask the server to send the whole file again, so giving up aborts the transfer.
+    if (!thread.successful()) {
+      send(socket, ControlMessage.abort(session));
+      System.out.println("[UDP] quit");
+    }
+    return thread.successful();
+  }
+
+  /**
+   * Sends a control message to the server the initial request was sent to.
+   * @param socket DatagramSocket the request was sent on.
+   * @param data Message to send, see ControlMessage.
+   * @throws IOException If the message cannot be sent.
+   */
+  private void send(DatagramSocket socket, byte[] data) throws IOException {
+    socket.send(new DatagramPacket(data, data.length, packet.getAddress(), packet.getPort()));
+  }
+}
+
+/**
+ * Reassembles the file of a transfer from packets that may arrive in any order. Subclasses decide
+ * where the payload of each packet goes, while this class keeps track of the packets that arrived.
+ * A verified file is digested as its packets join the contiguous run, so that checking it against the
+ * digest from the server takes no second pass over the file.
+ */
+abstract class ClientAssembly {
+  public static final int HEADER_LENGTH = 5;
+  public static final int SESSION_LENGTH = 4;
+  public static final int CHECKSUM_LENGTH = 4;
+  // Digest of the contiguous run so far, and the digest of the whole file sent by the server.
+  protected MessageDigest digest;
+  private byte[] expected;
+  protected int payload;
+  protected int cumulative;
+  protected int highest;
+  protected int count;
+  protected int max;
+  protected long length;
+
+  /**
+   * Creates a new ClientAssembly.
+   * @param limit Packet size limit the server frames packets with.
+   */
+  protected ClientAssembly(int limit) {
+    this.payload = limit - HEADER_LENGTH;
+  }
+
+  /**
+   * Adds the payload of a packet to the file.
+   * @param index Packet number, starting from 1.
+   * @param last If this is the last packet of the file.
+   * @param buffer Buffer holding the payload.
+   * @param offset Offset of the payload in the buffer.
+   * @param size Length of the payload.
+   * @return False if the packet had been received before.
+   * @throws Exception If the packet does not fit the file or cannot be stored.
+   */
+  public boolean add(int index, boolean last, byte[] buffer, int offset, int size) throws Exception {
+    if (index < 1 || size > payload || (max != 0 && index > max)) {
+      throw new Exception("Packet " + index + " does not fit the file");
+    }
+    if (has(index)) { return false; }
+    if (last) {
+      max = index;
+      length = (long) (index - 1) * payload + size;
+    }
+    // A packet that cannot be stored yet counts as lost, so it is asked for again later.
+    if (!store(index, buffer, offset, size)) { return true; }
+    count++;
+    highest = Math.max(highest, index);
+    while (has(cumulative + 1)) {
+      cumulative++;
+      advance(cumulative);
+    }
+    return true;
+  }
+
+  /**
+   * Stores the payload of a packet that has not been received before.
+   * @param index Packet number.
+   * @param buffer Buffer holding the payload.
+   * @param offset Offset of the payload in the buffer.
+   * @param size Length of the payload.
+   * @return False if the packet cannot be stored yet.
+   * @throws Exception If the payload cannot be stored.
+   */
+  protected abstract boolean store(int index, byte[] buffer, int offset, int size) throws Exception;
+
+  /**
+   * Called for every packet that joins the contiguous run of packets from the first, in order.
+   * Subclasses pass the payload on to digest.
+   * @param index Packet number.
+   * @throws IOException If the packet cannot be passed on.
+   */
+  protected void advance(int index) throws IOException {}
+
+  /**
+   * Returns the length of the payload of a packet in the contiguous run.
+   * @param index Packet number.
+   * @return Payload length.
+   */
+  protected int size(int index) {
+    // Every packet but the last is full, and the length is known once the last has arrived.
+    return index == max ? (int) (length - (long) (index - 1) * payload) : payload;
+  }
+
+  /**
+   * Adds the payload of the packet that joined the contiguous run to the digest, if verifying.
+   * @param buffer Buffer holding the payload.
+   * @param offset Offset of the payload in the buffer.
+   * @param size Length of the payload.
+   */
+  protected void digest(byte[] buffer, int offset, int size) {
+    if (digest != null) { digest.update(buffer, offset, size); }
+  }
+
+  /**
+   * Starts digesting the file, which is then only complete once the digest from the server arrived.
+   * Called before any packet is added.
+   */
+  public void verify() {
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException error) {
+      throw new IllegalStateException(error);
+    }
+  }
+
+  /**
+   * Sets the digest of the whole file as sent by the server.
+   * @param expected SHA-256 digest of the file.
+   */
+  public void expect(byte[] expected) {
+    this.expected = expected;
+  }
+
+  /**
+   * Returns if the complete file matches the digest from the server.
+   * @return True if it matches or the file is not verified.
+   */
+  public boolean verified() {
+    return digest == null || MessageDigest.isEqual(digest.digest(), expected);
+  }
+
+  /**
+   * Returns if the packet with the given number has been received.
+   * @param index Packet number.
+   * @return If the packet has been received.
+   */
+  public abstract boolean has(int index);
+
+  /**
+   * Finishes the file once every packet has arrived and reports it.
+   * @throws IOException If the file cannot be finished.
+   */
+  public abstract void finish() throws IOException;
+
+  /**
+   * Releases whatever the file is written to, complete or not.
+   * @throws IOException If it cannot be released.
+   */
+  public void close() throws IOException {}
+
+  /**
+   * Returns the number of the last packet of the contiguous run of packets from the first.
+   * @return Cumulative packet number, or 0 if the first packet has not arrived.
+   */
+  public int cumulative() {
+    return cumulative;
+  }
+
+  /**
+   * Returns the number of the last packet of the file once it has arrived.
+   * @return Last packet number, or 0 if it is not known yet.
+   */
+  public int last() {
+    return max;
+  }
+
+  /**
+   * Returns the highest packet number that has been received.
+   * @return Highest packet number, or 0 if nothing has been received.
+   */
+  public int highest() {
+    return highest;
+  }
+
+  /**
+   * Returns if no packet has arrived yet.
+   * @return If nothing has arrived.
+   */
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  /**
+   * Returns if every packet of the file has arrived.
+   * @return If every packet arrived.
+   */
+  public boolean arrived() {
+    return max != 0 && count == max;
+  }
+
+  /**
+   * Returns if every packet of the file has arrived, along with its digest if the file is verified.
+   * @return If the file is complete.
+   */
+  public boolean complete() {
+    return arrived() && (digest == null || expected != null);
+  }
+
+  /**
+   * Returns the first packet number from the given one onwards that has been received.
+   * @param from Packet number to start looking from.
+   * @return Packet number, or -1 if none has been received.
+   */
+  public int nextReceived(int from) {
+    if (from >= 1 && from <= cumulative) { return from; }
+    for (int index = Math.max(from, 1); index <= highest; index++) {
+      if (has(index)) { return index; }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the first packet number from the given one onwards that has not been received.
+   * @param from Packet number to start looking from.
+   * @return Packet number.
+   */
+  public int nextMissing(int from) {
+    int index = from <= cumulative ? cumulative + 1 : from;
+    while (has(index)) { index++; }
+    return index;
+  }
+}
+
+/**
+ * Assembly that keeps the whole file in memory and prints it once it is complete. The payload of
+ * every packet is written straight to its final offset in a byte array, which grows as packets
+ * further into the file arrive, and a bitmap tracks which packets have arrived. A compressed file is
+ * inflated into a second array as the contiguous run grows, and that array is printed instead.
+ */
+class ClientBufferAssembly extends ClientAssembly {
+  private static final int INITIAL_CAPACITY = 1 << 16;
+  // Largest array the virtual machine reliably allocates.
+  private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+  protected byte[] data = new byte[0];
+  private BitSet received = new BitSet();
+  private ClientInflater inflater;
+  private ByteArrayOutputStream inflated;
+
+  /**
+   * Creates a new ClientBufferAssembly.
+   * @param limit Packet size limit the server frames packets with.
+   * @param inflater Inflater of a compressed file, or null if the file comes as it is.
+   */
+  public ClientBufferAssembly(int limit, ClientInflater inflater) {
+    super(limit);
+    this.inflater = inflater;
+    if (inflater != null) { this.inflated = new ByteArrayOutputStream(INITIAL_CAPACITY); }
+  }
+
+  protected boolean store(int index, byte[] buffer, int offset, int size) throws Exception {
+    long position = (long) (index - 1) * payload;
+    if (position + size > MAX_CAPACITY) {
+      throw new Exception("File is too large to hold in memory");
+    }
+    if (position + size > data.length) {
+      // Grow by doubling so that filling the array from front to back only copies it a few times.
+      long capacity = Math.max(position + size, Math.max(INITIAL_CAPACITY, 2L * data.length));
+      data = Arrays.copyOf(data, (int) Math.min(capacity, MAX_CAPACITY));
+    }
+    System.arraycopy(buffer, offset, data, (int) position, size);
+    received.set(index);
+    return true;
+  }
+
+  protected void advance(int index) throws IOException {
+    int position = (index - 1) * payload;
+    digest(data, position, size(index));
+    if (inflater != null) { inflater.write(data, position, size(index), inflated); }
+  }
+
+  public boolean has(int index) {
+    return received.get(index);
+  }
+
+  public int nextReceived(int from) {
+    return received.nextSetBit(Math.max(from, 1));
+  }
+
+  public int nextMissing(int from) {
+    return received.nextClearBit(from);
+  }
+
+  /**
+   * Prints the complete file in one piece, even if other transfers are printing at the same time.
+   * @throws IOException If the file cannot be printed or a compressed file is cut short.
+   */
+  public void finish() throws IOException {
+    if (inflater != null) { inflater.finish(length); }
+    synchronized (System.out) {
+      System.out.print("[UDP] success file:\n----------\n");
+      if (inflater != null) { inflated.writeTo(System.out); } else { System.out.write(data, 0, (int) length); }
+      System.out.println("\n----------");
+    }
+  }
+}
+
+/**
+ * Assembly that keeps the signature of a requested file in memory for a ClientDelta, instead of
+ * printing it.
+ */
+class ClientSignatureAssembly extends ClientBufferAssembly {
+  /**
+   * Creates a new ClientSignatureAssembly.
+   * @param limit Packet size limit the server frames packets with.
+   */
+  public ClientSignatureAssembly(int limit) {
+    super(limit, null);
+  }
+
+  /**
+   * Returns the complete signature.
+   * @return Signature, see RollingChecksum.
+   */
+  public ByteBuffer signature() {
+    return ByteBuffer.wrap(data, 0, (int) length);
+  }
+
+  public void finish() {
+    System.out.println("[UDP] signature " + length + " bytes");
+  }
+}
+
+/**
+ * Fills in the packets of a requested file that a file the client already has, such as an older
+ * version of it, holds as well, so that only the rest of the file is fetched. The server signs every
+ * block of the file as large as a packet, see RollingChecksum, and the rolling checksum of every
+ * window of the basis is looked up among the blocks, which finds blocks wherever they moved to in the
+ * meantime. A window that matches is skipped over as a whole, like rsync does, so matching takes a
+ * single pass over the basis.
+ */
+class ClientDelta {
+  // Keeps the ranges of the packets to fetch comfortably inside a request, along with its filename.
+  private static final int MAX_RANGES = 100;
+  private static final int CHUNK = 1 << 20;
+  private String filename;
+  private int block;
+  // Rolling and strong checksum of every block, chained by rolling checksum from a table of heads,
+  // where both hold a block number plus one so that 0 ends a chain.
+  private int[] weak;
+  private long[] strong;
+  private int[] heads;
+  private int[] next;
+  // Offset in the basis of every block it holds, or -1.
+  private long[] offsets;
+
+  /**
+   * Creates a new ClientDelta.
+   * @param filename Name of the file to match requested files against.
+   */
+  public ClientDelta(String filename) {
+    this.filename = filename;
+  }
+
+  /**
+   * Matches the signature of a file against the basis and adds every block the basis holds to the
+   * assembly of the file as the packet that carries it. The last packet is always left to fetch,
+   * since it tells the assembly how long the file is.
+   * @param signature Signature of the requested file.
+   * @param assembly Assembly the file is put back together in.
+   * @return First and last packet number of every range of packets that still has to be fetched, one
+   * after the other.
+   * @throws Exception If the blocks do not match the packets or the basis cannot be read.
+   */
+  public int[] match(ByteBuffer signature, ClientAssembly assembly) throws Exception {
+    signature.getLong();
+    this.block = signature.getInt();
+    if (block != assembly.payload) {
+      throw new Exception("Signature blocks of " + block + " bytes do not match packets of " + assembly.payload + " bytes");
+    }
+    int blocks = signature.remaining() / RollingChecksum.ENTRY_LENGTH;
+    this.weak = new int[blocks];
+    this.strong = new long[blocks];
+    this.heads = new int[Integer.highestOneBit(Math.max(blocks, 1)) << 2];
+    this.next = new int[blocks];
+    this.offsets = new long[blocks];
+    Arrays.fill(offsets, -1);
+    for (int i = 0; i < blocks; i++) {
+      weak[i] = signature.getInt();
+      strong[i] = signature.getLong();
+      int slot = slot(weak[i]);
+      next[i] = heads[slot];
+      heads[slot] = i + 1;
+    }
+    int matched = 0;
+    try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+      if (blocks > 0) { matched = scan(file); }
+      byte[] buffer = new byte[block];
+      for (int i = 0; i < blocks; i++) {
+        if (offsets[i] < 0) { continue; }
+        file.seek(offsets[i]);
+        file.readFully(buffer);
+        assembly.add(i + 1, false, buffer, 0, block);
+      }
+    }
+    System.out.println("[UDP] delta " + filename + " holds " + matched + " of " + (blocks + 1) + " packets");
+    return ranges(blocks + 1);
+  }
+
+  /**
+   * Slides a window as large as a block over the basis, and notes the offset of the first window that
+   * matches each block.
+   * @param file Basis.
+   * @return Number of blocks matched.
+   * @throws IOException If the basis cannot be read.
+   */
+  private int scan(RandomAccessFile file) throws IOException {
+    byte[] window = new byte[Math.max(CHUNK, 2 * block)];
+    RollingChecksum rolling = new RollingChecksum(block);
+    MessageDigest digest = RollingChecksum.digest();
+    // Offset in the basis of the start of the buffer, and the part of the buffer read so far.
+    long base = 0;
+    int position = 0;
+    int end = 0;
+    boolean eof = false;
+    boolean rolled = false;
+    int matched = 0;
+    while (matched < weak.length) {
+      // Keep a byte beyond the window at hand to roll in, moving what is left to the front when short.
+      if (end - position <= block && !eof) {
+        System.arraycopy(window, position, window, 0, end - position);
+        base += position;
+        end -= position;
+        position = 0;
+        int read = 0;
+        while (end < window.length && (read = file.read(window, end, window.length - end)) != -1) { end += read; }
+        eof = read == -1;
+      }
+      if (end - position < block) { break; }
+      int value = rolled ? rolling.value() : rolling.reset(window, position);
+      rolled = true;
+      int found = match(value, window, position, base + position, digest);
+      if (found > 0) {
+        matched += found;
+        position += block;
+        rolled = false;
+      } else if (end - position > block) {
+        rolling.roll(window[position], window[position + block]);
+        position++;
+      } else {
+        break;
+      }
+    }
+    return matched;
+  }
+
+  /**
+   * Matches the window against every block with its rolling checksum that has not been matched yet.
+   * @param value Rolling checksum of the window.
+   * @param data Buffer holding the window.
+   * @param offset Offset of the window in the buffer.
+   * @param at Offset of the window in the basis.
+   * @param digest Digest the strong checksum is taken from.
+   * @return Number of blocks matched.
+   */
+  private int match(int value, byte[] data, int offset, long at, MessageDigest digest) {
+    int found = 0;
+    // The strong checksum is only taken once a rolling checksum matches.
+    boolean taken = false;
+    long checksum = 0;
+    for (int i = heads[slot(value)] - 1; i >= 0; i = next[i] - 1) {
+      if (weak[i] != value || offsets[i] >= 0) { continue; }
+      if (!taken) {
+        checksum = RollingChecksum.strong(digest, data, offset, block);
+        taken = true;
+      }
+      if (strong[i] == checksum) {
+        offsets[i] = at;
+        found++;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Returns the slot in the table of heads a rolling checksum is chained from.
+   * @param value Rolling checksum.
+   * @return Slot.
+   */
+  private int slot(int value) {
+    return (value ^ value >>> 15) & (heads.length - 1);
+  }
+
+  /**
+   * Lists the packets the basis does not hold as ranges. A list that grows too long for a request
+   * ends in an open range, which asks for every packet from there onwards.
+   * @param count Number of packets of the file.
+   * @return First and last packet number of every range to fetch, one after the other.
+   */
+  private int[] ranges(int count) {
+    int[] ranges = new int[2 * MAX_RANGES];
+    int size = 0;
+    for (int index = 1; index <= count; index++) {
+      if (index < count && offsets[index - 1] >= 0) { continue; }
+      int end = index;
+      while (end < count && (end + 1 == count || offsets[end] < 0)) { end++; }
+      boolean full = size == ranges.length - 2;
+      ranges[size++] = index;
+      ranges[size++] = full ? ControlMessage.OPEN : end;
+      if (full) { break; }
+      index = end;
+    }
+    return Arrays.copyOf(ranges, size);
+  }
+}
+
+/**
+ * Assembly that streams the file to an output in order as soon as each packet can be. Only packets
+ * that arrive ahead of a missing one are held back, in a fixed ring of slots that covers the packets
+ * right after the contiguous run, so memory stays the same whatever the size of the file. Packets
+ * beyond the ring are dropped and asked for again like any lost packet. A compressed file is inflated
+ * on its way to the output.
+ */
+class ClientStreamAssembly extends ClientAssembly {
+  // Number of packets the ring holds, which a window of at most this size never overruns.
+  public static final int REORDER_LIMIT = 1024;
+  private OutputStream output;
+  private String filename;
+  private ClientInflater inflater;
+  private byte[] ring;
+  // Packet number held by each slot, or 0 if the slot is empty, and the payload length of each slot.
+  private int[] indexes = new int[REORDER_LIMIT];
+  private int[] sizes = new int[REORDER_LIMIT];
+
+  /**
+   * Creates a new ClientStreamAssembly.
+   * @param limit Packet size limit the server frames packets with.
+   * @param filename Name of the file to stream to.
+   * @param inflater Inflater of a compressed file, or null if the file comes as it is.
+   * @param append If the file is appended to instead of replaced, to resume an earlier transfer.
+   * @throws IOException If the file cannot be created.
+   */
+  public ClientStreamAssembly(int limit, String filename, ClientInflater inflater, boolean append) throws IOException {
+    super(limit);
+    this.filename = filename;
+    this.inflater = inflater;
+    this.output = new FileOutputStream(filename, append);
+    this.ring = new byte[REORDER_LIMIT * payload];
+  }
+
+  protected boolean store(int index, byte[] buffer, int offset, int size) {
+    if (index > cumulative + REORDER_LIMIT) { return false; }
+    int slot = index % REORDER_LIMIT;
+    System.arraycopy(buffer, offset, ring, slot * payload, size);
+    indexes[slot] = index;
+    sizes[slot] = size;
+    return true;
+  }
+
+  protected void advance(int index) throws IOException {
+    int slot = index % REORDER_LIMIT;
+    digest(ring, slot * payload, sizes[slot]);
+    if (inflater != null) {
+      inflater.write(ring, slot * payload, sizes[slot], output);
+    } else {
+      output.write(ring, slot * payload, sizes[slot]);
+    }
+    indexes[slot] = 0;
+  }
+
+  public boolean has(int index) {
+    return index <= cumulative || (index <= cumulative + REORDER_LIMIT && indexes[index % REORDER_LIMIT] == index);
+  }
+
+  /**
+   * Closes the output and reports where the file went.
+   * @throws IOException If the output cannot be closed or a compressed file is cut short.
+   */
+  public void finish() throws IOException {
+    output.close();
+    System.out.println("[UDP] success file: " + filename + " " + (inflater != null ? inflater.finish(length) : length) + " bytes");
+  }
+
+  public void close() throws IOException {
+    output.close();
+  }
+}
+
+/**
+ * Assembly that writes the payload of every packet straight to its final offset in a file mapped into
+ * memory, so packets land on disk in whatever order they arrive without passing through the heap.
+ * The file is mapped in regions that are added as packets further into the file arrive, and it is
+ * truncated to its real length once complete. An interrupted transfer keeps only the contiguous part
+ * of the file from its start. A range of a file is written at its offset, after whatever the file
+ * already holds before it.
+ */
+class ClientMappedAssembly extends ClientAssembly {
+  private static final int REGION = 1 << 26;
+  private FileChannel file;
   private String filename;
-  private URL target;
+  // Offset in the file of the range the packets carry.
+  private long origin;
+  private ArrayList<MappedByteBuffer> regions = new ArrayList<>();
+  private BitSet received = new BitSet();
 
   /**
-   * Creates a ClientRequest from a string input.
-   * @param input Input read from the CLI.
-   * @throws Exception If the input is incorrect.
+   * Creates a new ClientMappedAssembly.
+   * @param limit Packet size limit the server frames packets with.
+   * @param filename Name of the file to write to, which is replaced if it exists and the range starts
+   * at its beginning.
+   * @param origin Offset in the file of the range the packets carry.
+   * @throws IOException If the file cannot be created.
    */
-  public ClientRequest(String input) throws Exception {
-    String[] arguments =  input.split(" ", 4);
-    if (arguments.length < 4) {
-      throw new Exception("Input must contain four separate arguments");
+  public ClientMappedAssembly(int limit, String filename, long origin) throws IOException {
+    super(limit);
+    this.filename = filename;
+    this.origin = origin;
+    if (origin > 0) {
+      this.file = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } else {
+      this.file = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
     }
-    size = Integer.parseInt(arguments[0]);
-    // Throw an error if the packet size is larger or equal to 1400.
-    if (size >= 1400) {
-      throw new Exception("Packet size must be lower than 1400");
+  }
+
+  protected boolean store(int index, byte[] buffer, int offset, int size) throws IOException {
+    long position = (long) (index - 1) * payload;
+    while (size > 0) {
+      // A packet may straddle two regions, in which case it is written in two parts.
+      MappedByteBuffer region = region((int) (position / REGION));
+      int start = (int) (position % REGION);
+      int part = Math.min(size, REGION - start);
+      region.put(start, buffer, offset, part);
+      position += part;
+      offset += part;
+      size -= part;
     }
-    timeout = Integer.parseInt(arguments[1]);
-    filename = arguments[2];
-    target = new URL("http://" + arguments[3]);
+    received.set(index);
+    return true;
   }
 
   /**
-   * Getter for the payload size parameter.
-   * @return UDP payload size.
+   * Returns the mapped region with the given number, mapping every region up to it first. Regions are
+   * numbered from the start of the range, and mapping a region beyond the end of the file grows the file.
+   * @param number Region number.
+   * @return Mapped region.
+   * @throws IOException If the file cannot be mapped.
    */
-  public int getSize() {
-    return size;
+  private MappedByteBuffer region(int number) throws IOException {
+    while (regions.size() <= number) {
+      regions.add(file.map(FileChannel.MapMode.READ_WRITE, origin + (long) regions.size() * REGION, REGION));
+    }
+    return regions.get(number);
+  }
+
+  protected void advance(int index) throws IOException {
+    if (digest == null) { return; }
+    long position = (long) (index - 1) * payload;
+    for (int size = size(index); size > 0; ) {
+      MappedByteBuffer region = region((int) (position / REGION));
+      int start = (int) (position % REGION);
+      int part = Math.min(size, REGION - start);
+      digest.update(region.slice(start, part));
+      position += part;
+      size -= part;
+    }
+  }
+
+  public boolean has(int index) {
+    return received.get(index);
+  }
+
+  public int nextReceived(int from) {
+    return received.nextSetBit(Math.max(from, 1));
+  }
+
+  public int nextMissing(int from) {
+    return received.nextClearBit(from);
   }
 
   /**
-   * Getter for the target URL for the HTTP request.
-   * @return UTL HTTP GET target.
+   * Cuts the file down to its real length and reports where it went.
+   * @throws IOException If the file cannot be written.
    */
-  public URL getTarget() {
-    return target;
+  public void finish() throws IOException {
+    truncate(origin + length);
+    System.out.println("[UDP] success file: " + filename + " " + (origin + length) + " bytes");
   }
 
   /**
-   * Getter for the UDP request timeout.
-   * @return UDP request timeout in milliseconds.
+   * Cuts the file down to the contiguous part from its start.
+   * @throws IOException If the file cannot be written.
    */
-  public int getTimeout() {
-    return timeout;
+  public void close() throws IOException {
+    // Every packet before the last is full, so the contiguous part ends right after the cumulative one.
+    if (file.isOpen()) { truncate(origin + (arrived() ? length : (long) cumulative * payload)); }
   }
 
   /**
-   * Getter for the filename to retrieve in the UDP request.
-   * @return Filename of local server to retrieve.
+   * Writes the mapped regions out, then truncates and closes the file.
+   * @param size Length to truncate the file to.
+   * @throws IOException If the file cannot be written.
    */
-  public String getFilename() {
-    return filename;
+  private void truncate(long size) throws IOException {
+    for (MappedByteBuffer region : regions) { region.force(); }
+    regions.clear();
+    file.truncate(size);
+    file.close();
   }
 }
 
 /**
- * Thread that handles timing out and retrying the UDP thread.
+ * Inflates a file the server deflated before framing it, fed with the payload of each packet as it
+ * joins the contiguous run from the first, see ServerDeflatedSource.
  */
-class UDPTimeoutThread extends Thread {
-  private DatagramSocket socket;
-  private DatagramPacket packet;
-  private int timeout;
+class ClientInflater {
+  private Inflater inflater = new Inflater();
+  private byte[] dictionary;
+  private byte[] buffer = new byte[1 << 16];
 
   /**
-   * Creates a UDPTimeoutThread.
-   * @param socket DatagramSocket to send and receive requests on.
-   * @param filename Filename to retrieve on the local UDP server.
-   * @param size Payload size each UDP packet should have.
-   * @param timeout Timeout in milliseconds for the request to complete.
-   * @throws UnknownHostException If the localhost setting cannot be found on this machine.
+   * Creates a new ClientInflater.
+   * @param dictionary Preset dictionary the server deflated the file with, or null for none.
    */
-  public UDPTimeoutThread(DatagramSocket socket, String filename, int size, int timeout) throws UnknownHostException {
-    byte[] buffer = (size + " " + filename).getBytes();
-    this.packet = new DatagramPacket(buffer, buffer.length, InetAddress.getLocalHost(), 13231);
-    this.timeout = timeout;
-    this.socket = socket;
+  public ClientInflater(byte[] dictionary) {
+    this.dictionary = dictionary;
   }
 
   /**
-   * Implementation of the Thread.run function.
+   * Inflates the next part of the deflated file and writes whatever comes out to the output.
+   * @param data Buffer holding the part.
+   * @param offset Offset of the part in the buffer.
+   * @param length Length of the part.
+   * @param output Output to write the inflated bytes to.
+   * @throws IOException If the part is corrupt or cannot be written.
    */
-  public void run() {
-    try { process(); } catch(Exception error) { error.printStackTrace(); }
+  public void write(byte[] data, int offset, int length, OutputStream output) throws IOException {
+    inflater.setInput(data, offset, length);
+    try {
+      while (true) {
+        int inflated = inflater.inflate(buffer);
+        if (inflated > 0) {
+          output.write(buffer, 0, inflated);
+        } else if (inflater.needsDictionary() && dictionary != null) {
+          inflater.setDictionary(dictionary);
+        } else if (inflater.needsDictionary()) {
+          throw new IOException("Compressed file needs a dictionary");
+        } else {
+          return;
+        }
+      }
+    } catch (DataFormatException error) {
+      throw new IOException("Compressed file is corrupt", error);
+    }
   }
 
   /**
-   * Starts the UDPThread and retries the thread if the timeout occurs before all bytes area read.
-   * @throws Exception If anything bad happens.
+   * Checks that the whole deflated file has been inflated and releases the inflater.
+   * @param length Length of the deflated file.
+   * @return Length of the inflated file.
+   * @throws IOException If the deflated file ended early.
    */
-  private void process() throws Exception {
-    UDPThread thread = new UDPThread(socket, packet);
-    System.out.println("[UDP] start");
-    thread.start();
-    Thread.sleep(timeout);
-    thread.shutdown();
-
-    if (!thread.successful()) {
-      System.out.println("[UDP] timeout");
-      System.out.println("[UDP] retry");
-      packet.setData("fail".getBytes());
-      thread = new UDPThread(socket, packet);
-      thread.start();
-      Thread.sleep(timeout * 2);
-      thread.shutdown();
-      if (!thread.successful()) {
-        socket.send(packet);
-        System.out.println("[UDP] quit");
+  public long finish(long length) throws IOException {
+    try {
+      if (!inflater.finished()) {
+        throw new IOException("Compressed file ended early");
       }
+      System.out.println("[UDP] inflated " + length + " bytes to " + inflater.getBytesWritten() + " bytes");
+      return inflater.getBytesWritten();
+    } finally {
+      inflater.end();
+    }
+  }
+}
+
+/**
+ * Rebuilds lost data packets of a transfer from the parity packets the server follows every block of
+ * data packets with, so that they need not be asked for again. The assembly may have passed packets
+ * on already, so the decoder keeps a copy of every data packet of the latest blocks that are not
+ * complete yet, see ServerRequestStream for the symbols and the layout of a parity packet.
+ */
+class ClientFecDecoder {
+  // Blocks kept at most, beyond which the oldest is given up on and left to a repair round.
+  private static final int MAX_BLOCKS = 16;
+  private ReedSolomon code;
+  private ClientAssembly assembly;
+  private int payload;
+  private LinkedHashMap<Integer, Block> blocks = new LinkedHashMap<>();
+
+  /**
+   * Data and parity symbols of a block received so far.
+   */
+  private static class Block {
+    private byte[][] symbols;
+    private byte[][] parities;
+    // Number of data packets in the block, or 0 until a parity packet tells.
+    private int size;
+
+    private Block(ReedSolomon code) {
+      this.symbols = new byte[code.getData()][];
+      this.parities = new byte[code.getParity()][];
+    }
+  }
+
+  /**
+   * Creates a new ClientFecDecoder.
+   * @param code Error correction code the file was requested with.
+   * @param assembly Assembly to add rebuilt packets to.
+   * @param limit Packet size limit the server frames packets with.
+   */
+  public ClientFecDecoder(ReedSolomon code, ClientAssembly assembly, int limit) {
+    this.code = code;
+    this.assembly = assembly;
+    this.payload = limit - ClientAssembly.HEADER_LENGTH;
+  }
+
+  /**
+   * Keeps a copy of a data packet until its block is complete or rebuilt.
+   * @param index Packet number.
+   * @param buffer Buffer holding the payload.
+   * @param offset Offset of the payload in the buffer.
+   * @param size Length of the payload.
+   * @throws Exception If a rebuilt packet does not fit the file.
+   */
+  public void data(int index, byte[] buffer, int offset, int size) throws Exception {
+    int number = (index - 1) / code.getData();
+    Block block = block(number);
+    if (block == null) { return; }
+    byte[] symbol = new byte[ReedSolomon.LENGTH_PREFIX + payload];
+    symbol[0] = (byte) (size >> 8);
+    symbol[1] = (byte) size;
+    System.arraycopy(buffer, offset, symbol, ReedSolomon.LENGTH_PREFIX, size);
+    block.symbols[(index - 1) % code.getData()] = symbol;
+    decode(number, block);
+  }
+
+  /**
+   * Adds a parity packet to its block and rebuilds whatever the block is missing once possible.
+   * @param number Parity packet number, starting from 1.
+   * @param size Number of data packets in the block.
+   * @param buffer Buffer holding the parity symbol.
+   * @param offset Offset of the parity symbol in the buffer.
+   * @param length Length of the parity symbol.
+   * @return Number of packets rebuilt.
+   * @throws Exception If the parity packet is malformed or a rebuilt packet does not fit the file.
+   */
+  public int parity(int number, int size, byte[] buffer, int offset, int length) throws Exception {
+    if (number < 1 || size < 1 || size > code.getData() || length != ReedSolomon.LENGTH_PREFIX + payload) {
+      throw new Exception("Parity packet " + number + " does not fit the file");
+    }
+    int first = (number - 1) / code.getParity() * code.getData() + 1;
+    Block block = block((number - 1) / code.getParity());
+    if (block == null) { return 0; }
+    block.size = size;
+    block.parities[(number - 1) % code.getParity()] = Arrays.copyOfRange(buffer, offset, offset + length);
+    // A block whose data packets all went into the assembly before it was kept needs no parity.
+    boolean needed = false;
+    for (int i = 0; i < size; i++) { needed |= block.symbols[i] == null && !assembly.has(first + i); }
+    if (!needed) {
+      blocks.remove((number - 1) / code.getParity());
+      return 0;
+    }
+    return decode((number - 1) / code.getParity(), block);
+  }
+
+  /**
+   * Returns the kept block with the given number, keeping a new one unless the block is already part
+   * of the contiguous run of packets.
+   * @param number Block number, starting from 0.
+   * @return Block, or null if it is not needed.
+   */
+  private Block block(int number) {
+    Block block = blocks.get(number);
+    if (block != null || (long) (number + 1) * code.getData() <= assembly.cumulative()) { return block; }
+    block = new Block(code);
+    blocks.put(number, block);
+    if (blocks.size() > MAX_BLOCKS) { blocks.remove(blocks.keySet().iterator().next()); }
+    return block;
+  }
+
+  /**
+   * Drops a block once all of its data packets arrived, or rebuilds the missing ones and adds them to
+   * the assembly once there are enough parity packets.
+   * @param number Block number.
+   * @param block Block to check.
+   * @return Number of packets rebuilt.
+   * @throws Exception If a rebuilt packet does not fit the file.
+   */
+  private int decode(int number, Block block) throws Exception {
+    int size = block.size == 0 ? code.getData() : block.size;
+    byte[][] symbols = Arrays.copyOf(block.symbols, size);
+    int missing = 0;
+    for (byte[] symbol : symbols) { if (symbol == null) { missing++; } }
+    if (missing == 0) {
+      blocks.remove(number);
+      return 0;
     }
+    if (block.size == 0 || !code.decode(symbols, block.parities, ReedSolomon.LENGTH_PREFIX + payload)) { return 0; }
+    blocks.remove(number);
+    for (int i = 0; i < size; i++) {
+      if (block.symbols[i] != null) { continue; }
+      int index = number * code.getData() + i + 1;
+      int length = (symbols[i][0] & 0xff) << 8 | symbols[i][1] & 0xff;
+      // Every data packet but the last of the file is full.
+      assembly.add(index, length < payload, symbols[i], ReedSolomon.LENGTH_PREFIX, length);
+      System.out.println("[UDP] rebuilt packet " + index + " " + (ClientAssembly.HEADER_LENGTH + length) + " bytes");
+    }
+    return missing;
   }
 }
 
@@ -126,22 +1392,55 @@ class UDPTimeoutThread extends Thread {
  * Thread that is responsible for making UDP requests to the local server.
  */
 class UDPThread extends Thread {
+  private static final int POLL_INTERVAL = 100;
+  // Number of in order packets received before an acknowledgement is sent, and the milliseconds to
+  // wait for the next packet before acknowledging fewer than that.
+  private static final int ACK_EVERY = 2;
+  private static final int ACK_DELAY = 2;
+  // Number of selective ranges carried by an acknowledgement.
+  private static final int SACK_LIMIT = 16;
   private DatagramSocket socket;
   private DatagramPacket packet;
-  private TreeMap<Integer, String> packets = new TreeMap<>();
-  private int max;
-  private boolean success = false;
-  private byte[] buffer = new byte[1400];
-  private boolean active = false;
+  private int session;
+  // Receiver of a socket shared with other transfers, which hands this thread the packets tagged with
+  // its session, or null if this thread receives from the socket itself.
+  private UDPReceiver receiver;
+  private ClientAssembly assembly;
+  private ClientFecDecoder decoder;
+  private UDPMulticastThread multicast;
+  private boolean acknowledge;
+  // Checksum of every packet, or null if packets carry none.
+  private CRC32C crc;
+  private int pending;
+  // Receive timeout the socket is set to, which is only changed when the flow of packets starts or
+  // stops, or 0 before it is first set.
+  private int timeout;
+  private volatile boolean success = false;
+  // Parity packets are a few bytes longer than the packet size.
+  private byte[] buffer = new byte[1400 + 1 + ReedSolomon.LENGTH_PREFIX];
+  private volatile boolean active = false;
 
   /**
    * Creates a UDPThread.
    * @param socket DatagramSocket to send and received requests.
+   * @param receiver Receiver of the socket if it is shared with other transfers, in which case every
+   * packet carries the session, or null.
    * @param packet Initial packet to send over the socket.
+   * @param session Session every message of the transfer carries.
+   * @param assembly Assembly to add the received packets to.
+   * @param decoder Decoder to rebuild lost packets with, or null if the file comes without parity.
+   * @param acknowledge If received packets should be acknowledged for a windowed stream.
+   * @param checked If every packet ends in a checksum.
    */
-  public UDPThread(DatagramSocket socket, DatagramPacket packet) {
+  public UDPThread(DatagramSocket socket, UDPReceiver receiver, DatagramPacket packet, int session, ClientAssembly assembly, ClientFecDecoder decoder, boolean acknowledge, boolean checked) {
     this.packet = packet;
+    this.session = session;
     this.socket = socket;
+    this.receiver = receiver;
+    this.assembly = assembly;
+    this.decoder = decoder;
+    this.acknowledge = acknowledge;
+    if (checked) { this.crc = new CRC32C(); }
   }
 
   /**
@@ -159,6 +1458,34 @@ class UDPThread extends Thread {
     return success;
   }
 
+  /**
+   * Lists the packet numbers that have not been received yet as ranges, e.g. 2-4, 9 and 12 onwards.
+   * A trailing open range means every packet from that number onwards, which is used while the last
+   * packet has not been seen. The list is cut short to fit in a single control message, and no list
+   * at all means that nothing has been received. Once every packet has arrived and only the digest is
+   * missing the list is the single range 0-0, which asks for no packet but does get the digest.
+   * @return First and last packet number of every missing range, one after the other, or null.
+   */
+  public synchronized int[] missing() {
+    if (assembly.isEmpty()) { return null; }
+    if (assembly.arrived()) { return new int[] { 0, 0 }; }
+    int[] ranges = new int[2 * ControlMessage.MAX_RANGES];
+    int size = 0;
+    int expected = 1;
+    for (int index = assembly.nextReceived(1); index != -1; index = assembly.nextReceived(expected)) {
+      if (index > expected && size < ranges.length) {
+        ranges[size++] = expected;
+        ranges[size++] = index - 1;
+      }
+      expected = assembly.nextMissing(index);
+    }
+    if (assembly.last() == 0 && size < ranges.length) {
+      ranges[size++] = expected;
+      ranges[size++] = ControlMessage.OPEN;
+    }
+    return Arrays.copyOf(ranges, size);
+  }
+
   /**
    * Shuts down execution of this thread.
    */
@@ -173,69 +1500,370 @@ class UDPThread extends Thread {
    */
   private void listen() throws Exception {
     this.active = true;
+    if (receiver != null) {
+      receiver.register(session, this);
+      try { share(); } finally { receiver.unregister(session); }
+      return;
+    }
     // Send initial data packet.
     this.socket.send(this.packet);
+    // Wake up regularly so that a shutdown is noticed even when no packets are arriving.
+    timeout(POLL_INTERVAL);
     DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
     boolean done = false;
     while (!done && active) {
-      socket.receive(packet);
+      try {
+        socket.receive(packet);
+      } catch (SocketTimeoutException error) {
+        // Packets from a multicast group may have completed the file in the meantime.
+        done = delayed();
+        continue;
+      }
       // Each process returns a done flag to determine if all packets came in successfully.
       if (active) { done = process(packet); }
     }
-    if (!active) { return; }
+    finish();
+  }
+
+  /**
+   * Sends the initial packet over a socket shared with other transfers and waits for the receiver to
+   * hand over every packet of the file. Held back acknowledgements are sent as the thread wakes up,
+   * since the receive timeout of the socket belongs to the receiver.
+   * @throws Exception If anything bad happened.
+   */
+  private void share() throws Exception {
+    this.socket.send(this.packet);
+    boolean done = false;
+    while (!done && active) {
+      // A windowed stream wakes up often enough that a held back acknowledgement goes out in time.
+      synchronized (this) {
+        if (!assembly.complete()) { wait(acknowledge ? ACK_DELAY : POLL_INTERVAL); }
+      }
+      done = delayed();
+    }
+    finish();
+  }
+
+  /**
+   * Checks the file once every packet has arrived and replies with a "file OK", or releases whatever
+   * the file is written to if the transfer was shut down.
+   * @throws Exception If anything bad happened.
+   */
+  private void finish() throws Exception {
+    if (multicast != null) { multicast.shutdown(); }
+    if (!active) {
+      assembly.close();
+      return;
+    }
+    if (!assembly.verified()) {
+      System.out.println("[UDP] digest mismatch");
+      assembly.close();
+      return;
+    }
     success = true;
     // Send a "file OK" message back to the server.
-    packet.setData("file OK".getBytes());
-    socket.send(packet);
-    String value = payload();
-    // Print the resulting file.
-    System.out.println("[UDP] success file:\n----------\n" + value + "\n----------");
+    send(ControlMessage.success(session));
+    assembly.finish();
   }
 
   /**
-   * Returns the complete payload in the correct packet order.
-   * @return Payload as a string.
+   * Processes a packet that arrived on another socket, such as from a multicast group, or that a
+   * receiver handed over from a shared socket.
+   * @param packet Packet to process.
+   * @return If the instance has received all possible packets.
+   * @throws Exception if the received packet does not match the expected byte structure.
    */
-  private String payload() {
-    StringBuilder builder = new StringBuilder();
-    for (int i = 0; i < packets.size(); i++) {
-      builder.append(packets.get(i + 1));
-    }
-    return builder.toString();
+  public boolean receive(DatagramPacket packet) throws Exception {
+    return process(packet);
   }
 
   /**
-   * Process UDP packets as they come in and add them to the current packet map tracker.
+   * Process UDP packets as they come in and add them to the reassembled file.
    * @param packet Packet to process
    * @return If the instance has received all possible packets.
    * @throws Exception if the received packet does not match the expected byte structure.
    */
-  private boolean process(DatagramPacket packet) throws Exception {
+  private synchronized boolean process(DatagramPacket packet) throws Exception {
     // Wrap the packet data in a byte buffer for easier operations.
     ByteBuffer buffer = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
-    if (buffer.limit() < 5) {
-      throw new Exception("Packet data must have at least 5 bytes");
+    int header = ClientAssembly.HEADER_LENGTH + (receiver != null ? ClientAssembly.SESSION_LENGTH : 0);
+    if (buffer.limit() < header + (crc != null ? ClientAssembly.CHECKSUM_LENGTH : 0)) {
+      throw new Exception("Packet data must have at least " + header + " bytes and its checksum");
+    }
+    // A corrupt packet is dropped as if it was lost, so that it is sent again.
+    if (crc != null) {
+      int end = buffer.limit() - ClientAssembly.CHECKSUM_LENGTH;
+      crc.reset();
+      crc.update(packet.getData(), 0, end);
+      if ((int) crc.getValue() != buffer.getInt(end)) {
+        System.out.println("[UDP] corrupt packet " + buffer.getInt(0));
+        return assembly.complete();
+      }
+      buffer.limit(end);
     }
     // Retrieve integer value of packet number from the first four byte values.
     Integer index = buffer.getInt();
     // Retrieve flag determining if this packet is considered the last packet.
+    byte flag = buffer.get();
+    // The receiver only hands over packets of this session, so the session is skipped.
+    buffer.position(header);
     boolean last;
-    switch (buffer.get()) {
+    switch (flag) {
       case 0b0000000: last = false;
         break;
       case 0b1111111: last = true;
         break;
+      case ReedSolomon.PARITY: return parity(index, buffer);
       default: throw new Exception("Packet end flag byte must be 0000000 or 1111111");
     }
-    // Pull the rest of the payload as data contents. Copy the underlying buffer array to avoid
-    // accidental copying of the complete array.
-    String value = new String(Arrays.copyOfRange(buffer.array(), 5, buffer.limit()));
-    packets.put(index, value);
+    // Packet number 0 carries a control message from the server instead of a part of the file.
+    if (index == 0) {
+      control(new String(buffer.array(), header, buffer.remaining()));
+      return assembly.complete();
+    }
+    // Write the rest of the payload straight to its place in the file.
+    boolean duplicate = !assembly.add(index, last, buffer.array(), header, buffer.remaining());
     System.out.println("[UDP] received packet " + index.toString() + " " + buffer.limit() + " bytes");
-    // Set the max packet count if the last flag is set.
-    if (last) { max = index; }
-    // Only return true if the max packet count is set and the current packet map is the same size.
-    return max != 0 && max == packets.size();
+    if (decoder != null && !duplicate) { decoder.data(index, buffer.array(), header, buffer.remaining()); }
+    boolean done = assembly.complete();
+    // Acknowledge right away whenever something is out of order so the server can repair it quickly.
+    if (acknowledge && !done && (duplicate || assembly.cumulative() < assembly.highest() || ++pending >= ACK_EVERY)) {
+      acknowledge();
+    }
+    // Hold back a lone acknowledgement only briefly, in case the window only allowed a single packet.
+    // The short timeout stays while packets keep arriving, and delayed goes back to polling once they
+    // stop, so the socket is not reconfigured for every packet.
+    if (receiver == null) {
+      if (pending > 0) { timeout(ACK_DELAY); }
+    } else if (done) {
+      notifyAll();
+    }
+    return done;
+  }
+
+  /**
+   * Processes a parity packet, which carries the number of data packets in its block after the
+   * header, and rebuilds lost packets of the block from it where possible.
+   * @param index Parity packet number.
+   * @param buffer Packet data positioned after the header.
+   * @return If the instance has received all possible packets.
+   * @throws Exception If the parity packet does not fit the file.
+   */
+  private boolean parity(int index, ByteBuffer buffer) throws Exception {
+    System.out.println("[UDP] received parity " + index + " " + buffer.limit() + " bytes");
+    if (decoder == null || !buffer.hasRemaining()) {
+      throw new Exception("Parity packet " + index + " was not asked for");
+    }
+    int size = buffer.get() & 0xff;
+    decoder.parity(index, size, buffer.array(), buffer.position(), buffer.remaining());
+    return assembly.complete();
+  }
+
+  /**
+   * Handles a control message from the server, such as "mcast 239.255.13.231:13232" which asks the
+   * client to join the multicast group the file is streamed to, or "digest <hex>" which holds the
+   * SHA-256 digest of the file.
+   * @param message Control message.
+   */
+  private void control(String message) {
+    String[] args = message.split(" ", 2);
+    System.out.println("[UDP] control " + message);
+    if (args[0].equals("digest") && args.length == 2) {
+      assembly.expect(HexFormat.of().parseHex(args[1]));
+    } else if (args[0].equals("mcast") && args.length == 2 && multicast == null) {
+      int split = args[1].lastIndexOf(':');
+      InetSocketAddress group = new InetSocketAddress(args[1].substring(0, split), Integer.parseInt(args[1].substring(split + 1)));
+      multicast = new UDPMulticastThread(this, group);
+      multicast.start();
+    }
+  }
+
+  /**
+   * Sends an acknowledgement that was held back once no further packet arrived in time.
+   * @return If the instance has received all possible packets.
+   * @throws IOException If the acknowledgement cannot be sent.
+   */
+  private synchronized boolean delayed() throws IOException {
+    if (pending > 0) { acknowledge(); }
+    if (receiver == null) { timeout(POLL_INTERVAL); }
+    return assembly.complete();
+  }
+
+  /**
+   * Sets the receive timeout of the socket, unless it is set to that already, since every change is a
+   * system call.
+   * @param millis Receive timeout in milliseconds.
+   * @throws SocketException If the timeout cannot be set.
+   */
+  private void timeout(int millis) throws SocketException {
+    if (millis == timeout) { return; }
+    socket.setSoTimeout(millis);
+    timeout = millis;
+  }
+
+  /**
+   * Sends an acknowledgement to the server, holding the cumulative packet number followed by the
+   * ranges of packets received beyond it, such as 10 followed by 12-15 and 18.
+   * @throws IOException If the acknowledgement cannot be sent.
+   */
+  private void acknowledge() throws IOException {
+    int[] ranges = new int[2 * SACK_LIMIT];
+    int size = 0;
+    int start = assembly.nextReceived(assembly.cumulative() + 1);
+    while (start != -1 && size < ranges.length) {
+      int end = assembly.nextMissing(start) - 1;
+      ranges[size++] = start;
+      ranges[size++] = end;
+      start = assembly.nextReceived(end + 1);
+    }
+    send(ControlMessage.acknowledge(session, assembly.cumulative(), Arrays.copyOf(ranges, size)));
+    pending = 0;
+  }
+
+  /**
+   * Sends a control message to the port the request was sent to, which is not necessarily the port
+   * the packets come from.
+   * @param data Message to send, see ControlMessage.
+   * @throws IOException If the message cannot be sent.
+   */
+  private void send(byte[] data) throws IOException {
+    socket.send(new DatagramPacket(data, data.length, packet.getAddress(), packet.getPort()));
+  }
+}
+
+/**
+ * Thread that receives the packets of a multicast group the server streams a file to, and hands them
+ * to the UDPThread of the transfer as if they had arrived on its own socket.
+ */
+class UDPMulticastThread extends Thread {
+  private static final int POLL_INTERVAL = 100;
+  private UDPThread thread;
+  private InetSocketAddress group;
+  private byte[] buffer = new byte[1400 + 1 + ReedSolomon.LENGTH_PREFIX];
+  private volatile boolean active = true;
+
+  /**
+   * Creates a UDPMulticastThread.
+   * @param thread Thread of the transfer to hand packets to.
+   * @param group Group address and port to join.
+   */
+  public UDPMulticastThread(UDPThread thread, InetSocketAddress group) {
+    this.thread = thread;
+    this.group = group;
+  }
+
+  /**
+   * Implementation of Thread.run function.
+   */
+  public void run() {
+    try { listen(); } catch (Exception error) { error.printStackTrace(); }
+  }
+
+  /**
+   * Shuts down execution of this thread, which leaves the group.
+   */
+  public void shutdown() {
+    this.active = false;
+  }
+
+  /**
+   * Joins the group and hands every packet to the transfer until the file is complete.
+   * @throws Exception If the group cannot be joined or a packet is malformed.
+   */
+  private void listen() throws Exception {
+    try (MulticastSocket socket = new MulticastSocket(group.getPort())) {
+      socket.joinGroup(group, null);
+      // Wake up regularly so that a shutdown is noticed even when no packets are arriving.
+      socket.setSoTimeout(POLL_INTERVAL);
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      while (active) {
+        try {
+          socket.receive(packet);
+        } catch (SocketTimeoutException error) {
+          continue;
+        }
+        if (active && thread.receive(packet)) { return; }
+      }
+    }
+  }
+}
+
+/**
+ * Thread that receives the packets of every transfer running over a shared socket and hands each to
+ * the UDPThread of its transfer, which is the one registered for the session the packet carries after
+ * its header. Packets of a session that is not running, such as those still in flight after its
+ * transfer ended, are dropped.
+ */
+class UDPReceiver extends Thread {
+  private static final int POLL_INTERVAL = 100;
+  private DatagramSocket socket;
+  private Map<Integer, UDPThread> threads = new ConcurrentHashMap<>();
+  private byte[] buffer = new byte[1400 + 1 + ReedSolomon.LENGTH_PREFIX];
+  private volatile boolean active = true;
+
+  /**
+   * Creates a UDPReceiver.
+   * @param socket DatagramSocket shared by the transfers.
+   */
+  public UDPReceiver(DatagramSocket socket) {
+    this.socket = socket;
+  }
+
+  /**
+   * Implementation of Thread.run function.
+   */
+  public void run() {
+    try { listen(); } catch (Exception error) { error.printStackTrace(); }
+  }
+
+  /**
+   * Hands the packets of a session to the given thread from now on.
+   * @param session Session of the transfer.
+   * @param thread Thread of the transfer.
+   */
+  public void register(int session, UDPThread thread) {
+    threads.put(session, thread);
+  }
+
+  /**
+   * Stops handing over the packets of a session.
+   * @param session Session of the transfer.
+   */
+  public void unregister(int session) {
+    threads.remove(session);
+  }
+
+  /**
+   * Shuts down execution of this thread.
+   */
+  public void shutdown() {
+    this.active = false;
+  }
+
+  /**
+   * Hands every packet to the transfer of its session until shut down. A malformed packet only fails
+   * its own transfer, whose repair rounds ask for it again.
+   * @throws Exception If the socket cannot be read.
+   */
+  private void listen() throws Exception {
+    // Wake up regularly so that a shutdown is noticed even when no packets are arriving.
+    socket.setSoTimeout(POLL_INTERVAL);
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    while (active) {
+      try {
+        socket.receive(packet);
+      } catch (SocketTimeoutException error) {
+        continue;
+      }
+      if (packet.getLength() < ClientAssembly.HEADER_LENGTH + ClientAssembly.SESSION_LENGTH) { continue; }
+      UDPThread thread = threads.get(ByteBuffer.wrap(buffer).getInt(ClientAssembly.HEADER_LENGTH));
+      if (thread == null) { continue; }
+      try {
+        thread.receive(packet);
+      } catch (Exception error) {
+        error.printStackTrace();
+      }
+    }
   }
 }
 
@@ -281,14 +1909,15 @@ class HTTPThread extends Thread {
  * Main method for the client portion of the application.
  */
 public class JeanClient {
-  public static void main(String args[]) {
+  public static void main(String args[]) throws Exception {
+    ClientConfig config = new ClientConfig(args);
     // Perform until a signal kill command is sent. This is useful for testing many different inputs.
     while (true) {
       try {
         DatagramSocket socket = new DatagramSocket();
         System.out.println(
           "Please enter the payload size, request timeout, filename, and web server URL separated by spaces " +
-          "(payload_size timeout filename URL):"
+          "(payload_size timeout filename URL), where several filenames separated by commas are fetched at once:"
         );
 
         ClientRequest request = null;
@@ -300,6 +1929,7 @@ public class JeanClient {
           String input = scanner.nextLine();
           try {
             request = new ClientRequest(input);
+            config.parallel(request.getFilenames().length);
           } catch (Exception error) {
             System.out.println("Incorrect format: " + error.getMessage());
             continue;
@@ -307,10 +1937,17 @@ public class JeanClient {
           reading = false;
         }
 
+        // Several files share the socket, whose packets a receiver hands to each file by session.
+        String[] filenames = request.getFilenames();
+        UDPReceiver receiver = filenames.length > 1 ? new UDPReceiver(socket) : null;
+        if (receiver != null) { receiver.start(); }
+
         // Start each thread and join them to the main one to wait for all input.
-        Thread[] threads = new Thread[2];
+        Thread[] threads = new Thread[1 + filenames.length];
         threads[0] = new HTTPThread(request.getTarget());
-        threads[1] = new UDPTimeoutThread(socket, request.getFilename(), request.getSize(), request.getTimeout());
+        for (int i = 0; i < filenames.length; i++) {
+          threads[1 + i] = new UDPTimeoutThread(socket, receiver, filenames[i], request.getSize(), request.getTimeout(), config);
+        }
 
         for (Thread thread : threads) {
           thread.start();
@@ -318,6 +1955,7 @@ public class JeanClient {
         for (Thread thread : threads) {
           thread.join();
         }
+        if (receiver != null) { receiver.shutdown(); }
       } catch (Exception error) {
         error.printStackTrace();
       }
@@ -0,0 +1,183 @@
+/**
+ * Systematic Reed-Solomon erasure code over GF(256), shared by the server that encodes parity packets
+ * and the client that rebuilds lost packets from them. The parity symbols of a block of data symbols
+ * come from a Cauchy matrix, so any lost data symbols of a block can be rebuilt from as many of its
+ * parity symbols. The columns of the matrix are scaled so that its first row is all ones, which makes the
+ * first parity symbol the plain XOR of the data symbols. Multiplication is a lookup in a full table,
+ * so encoding is one table row per data symbol and no arithmetic.
+ */
+class ReedSolomon {
+  // Flag byte of a parity packet, in place of the last packet flag of a data packet.
+  public static final byte PARITY = 0b1010101;
+  // Bytes in front of the payload in a symbol, which hold its length.
+  public static final int LENGTH_PREFIX = 2;
+  // Primitive polynomial x^8 + x^4 + x^3 + x^2 + 1 of the field.
+  private static final int POLYNOMIAL = 0x11d;
+  private static final int[] EXP = new int[512];
+  private static final int[] LOG = new int[256];
+  private static final byte[][] MUL = new byte[256][256];
+  private int data;
+  private int parity;
+  // Coefficient of every data symbol in every parity symbol.
+  private int[][] matrix;
+
+  static {
+    for (int i = 0, x = 1; i < 255; i++) {
+      EXP[i] = x;
+      LOG[x] = i;
+      x <<= 1;
+      if (x >= 256) { x ^= POLYNOMIAL; }
+    }
+    // Doubling the table saves reducing the sum of two logarithms.
+    for (int i = 255; i < EXP.length; i++) { EXP[i] = EXP[i - 255]; }
+    for (int a = 1; a < 256; a++) {
+      for (int b = 1; b < 256; b++) { MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]]; }
+    }
+  }
+
+  /**
+   * Creates a new ReedSolomon code.
+   * @param data Maximum number of data symbols in a block.
+   * @param parity Number of parity symbols of a block.
+   * @throws Exception If there are more symbols than the field has elements.
+   */
+  public ReedSolomon(int data, int parity) throws Exception {
+    if (data < 1 || parity < 1 || data + parity > 256) {
+      throw new Exception("Error correction needs at least one data and parity packet and at most 256 together");
+    }
+    this.data = data;
+    this.parity = parity;
+    this.matrix = new int[parity][data];
+    // Cauchy matrix 1 / (x_j + y_i) with x_j = data + j and y_i = i, every square part of which is
+    // invertible, scaled by column so that the first row is all ones.
+    for (int j = 0; j < parity; j++) {
+      for (int i = 0; i < data; i++) {
+        matrix[j][i] = multiply(inverse((data + j) ^ i), data ^ i);
+      }
+    }
+  }
+
+  /**
+   * Returns the maximum number of data symbols in a block.
+   * @return Data symbols per block.
+   */
+  public int getData() {
+    return data;
+  }
+
+  /**
+   * Returns the number of parity symbols of a block.
+   * @return Parity symbols per block.
+   */
+  public int getParity() {
+    return parity;
+  }
+
+  /**
+   * Adds a data symbol to the parity symbols of its block, which start out as zeros.
+   * @param column Position of the data symbol in its block.
+   * @param symbol Data symbol.
+   * @param parities Parity symbols of the block, at least as long as the data symbol.
+   */
+  public void encode(int column, byte[] symbol, byte[][] parities) {
+    for (int j = 0; j < parity; j++) { add(parities[j], symbol, matrix[j][column], symbol.length); }
+  }
+
+  /**
+   * Rebuilds the missing data symbols of a block from its parity symbols.
+   * @param symbols Data symbols of the block, with null for every missing one, which are filled in.
+   * @param parities Parity symbols of the block, with null for every missing one.
+   * @param length Length of every symbol.
+   * @return False if there are fewer parity symbols than missing data symbols.
+   */
+  public boolean decode(byte[][] symbols, byte[][] parities, int length) {
+    int[] missing = new int[symbols.length];
+    int[] rows = new int[parity];
+    int lost = 0, found = 0;
+    for (int i = 0; i < symbols.length; i++) { if (symbols[i] == null) { missing[lost++] = i; } }
+    for (int j = 0; j < parity && found < lost; j++) { if (parities[j] != null) { rows[found++] = j; } }
+    if (found < lost) { return false; }
+    // Take the known data symbols out of the parity symbols, leaving only the missing ones in them.
+    byte[][] sums = new byte[lost][];
+    int[][] system = new int[lost][lost];
+    for (int a = 0; a < lost; a++) {
+      sums[a] = parities[rows[a]].clone();
+      for (int i = 0; i < symbols.length; i++) {
+        if (symbols[i] != null) { add(sums[a], symbols[i], matrix[rows[a]][i], length); }
+      }
+      for (int b = 0; b < lost; b++) { system[a][b] = matrix[rows[a]][missing[b]]; }
+    }
+    int[][] inverted = invert(system);
+    for (int b = 0; b < lost; b++) {
+      symbols[missing[b]] = new byte[length];
+      for (int a = 0; a < lost; a++) { add(symbols[missing[b]], sums[a], inverted[b][a], length); }
+    }
+    return true;
+  }
+
+  /**
+   * Inverts a square matrix over the field with Gauss-Jordan elimination.
+   * @param matrix Invertible matrix, which is destroyed.
+   * @return Inverted matrix.
+   */
+  private static int[][] invert(int[][] matrix) {
+    int size = matrix.length;
+    int[][] inverse = new int[size][size];
+    for (int i = 0; i < size; i++) { inverse[i][i] = 1; }
+    for (int column = 0; column < size; column++) {
+      int pivot = column;
+      while (matrix[pivot][column] == 0) { pivot++; }
+      int[] swap = matrix[pivot]; matrix[pivot] = matrix[column]; matrix[column] = swap;
+      swap = inverse[pivot]; inverse[pivot] = inverse[column]; inverse[column] = swap;
+      int scale = inverse(matrix[column][column]);
+      for (int k = 0; k < size; k++) {
+        matrix[column][k] = multiply(matrix[column][k], scale);
+        inverse[column][k] = multiply(inverse[column][k], scale);
+      }
+      for (int row = 0; row < size; row++) {
+        int factor = matrix[row][column];
+        if (row == column || factor == 0) { continue; }
+        for (int k = 0; k < size; k++) {
+          matrix[row][k] ^= multiply(factor, matrix[column][k]);
+          inverse[row][k] ^= multiply(factor, inverse[column][k]);
+        }
+      }
+    }
+    return inverse;
+  }
+
+  /**
+   * Adds a symbol multiplied by a coefficient to another symbol.
+   * @param target Symbol to add to.
+   * @param symbol Symbol to add.
+   * @param coefficient Field element to multiply the symbol with.
+   * @param length Number of bytes to add.
+   */
+  private static void add(byte[] target, byte[] symbol, int coefficient, int length) {
+    if (coefficient == 1) {
+      for (int k = 0; k < length; k++) { target[k] ^= symbol[k]; }
+    } else if (coefficient != 0) {
+      byte[] row = MUL[coefficient];
+      for (int k = 0; k < length; k++) { target[k] ^= row[symbol[k] & 0xff]; }
+    }
+  }
+
+  /**
+   * Multiplies two field elements.
+   * @param a Field element.
+   * @param b Field element.
+   * @return Product.
+   */
+  private static int multiply(int a, int b) {
+    return MUL[a][b] & 0xff;
+  }
+
+  /**
+   * Returns the multiplicative inverse of a field element.
+   * @param a Field element other than zero.
+   * @return Inverse.
+   */
+  private static int inverse(int a) {
+    return EXP[255 - LOG[a]];
+  }
+}
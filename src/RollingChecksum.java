@@ -0,0 +1,91 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Rolling checksum of rsync, shared by the server that signs every block of a file and the client that
+ * looks for those blocks at any offset of a file it already has. The checksum of a window is the sum of
+ * its bytes in the low 16 bits and the sum of those sums in the high 16 bits, so sliding the window by
+ * a byte only takes the byte that leaves it and the byte that enters it. Windows whose rolling
+ * checksums match are told apart by a strong checksum, the first 8 bytes of their MD5 digest.
+ * A signature holds the length of the file and the block size, followed by the rolling and the strong
+ * checksum of every full block of the file.
+ */
+class RollingChecksum {
+  public static final int HEADER_LENGTH = 12;
+  public static final int ENTRY_LENGTH = 12;
+  private int size;
+  private int a;
+  private int b;
+
+  /**
+   * Creates a new RollingChecksum.
+   * @param size Size of the window in bytes.
+   */
+  public RollingChecksum(int size) {
+    this.size = size;
+  }
+
+  /**
+   * Computes the checksum of the window that starts at the given offset.
+   * @param data Buffer holding the window.
+   * @param offset Offset of the window in the buffer.
+   * @return Checksum of the window.
+   */
+  public int reset(byte[] data, int offset) {
+    a = 0;
+    b = 0;
+    for (int i = 0; i < size; i++) {
+      int x = data[offset + i] & 0xff;
+      a += x;
+      b += (size - i) * x;
+    }
+    return value();
+  }
+
+  /**
+   * Slides the window forward by one byte.
+   * @param out Byte that leaves the window at its start.
+   * @param in Byte that enters the window at its end.
+   * @return Checksum of the window.
+   */
+  public int roll(byte out, byte in) {
+    a += (in & 0xff) - (out & 0xff);
+    b += a - size * (out & 0xff);
+    return value();
+  }
+
+  /**
+   * Returns the checksum of the current window. Both sums only count modulo 2^16, which the overflow
+   * of either sum does not change.
+   * @return Checksum of the window.
+   */
+  public int value() {
+    return (a & 0xffff) | (b << 16);
+  }
+
+  /**
+   * Creates the digest the strong checksum is taken from.
+   * @return MD5 digest.
+   */
+  public static MessageDigest digest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException error) {
+      throw new IllegalStateException(error);
+    }
+  }
+
+  /**
+   * Computes the strong checksum of a block.
+   * @param digest Digest created by digest.
+   * @param data Buffer holding the block.
+   * @param offset Offset of the block in the buffer.
+   * @param length Length of the block.
+   * @return First 8 bytes of the digest of the block.
+   */
+  public static long strong(MessageDigest digest, byte[] data, int offset, int length) {
+    digest.update(data, offset, length);
+    return ByteBuffer.wrap(digest.digest()).getLong();
+  }
+}
@@ -0,0 +1,34 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Pool of direct buffers that streams frame packets into, so that starting a stream or a retry reuses
+ * a buffer instead of allocating one. Allocating direct memory is slow and it is only freed once the
+ * garbage collector gets around to the buffer that owns it.
+ */
+class ServerBufferPool {
+  // Number of idle buffers kept for each size.
+  private static final int MAX_IDLE = 256;
+  private static HashMap<Integer, ArrayDeque<ByteBuffer>> idle = new HashMap<>();
+
+  /**
+   * Takes a cleared direct buffer out of the pool, or allocates one if there is none of that size.
+   * @param capacity Capacity of the buffer.
+   * @return Direct buffer.
+   */
+  public static synchronized ByteBuffer acquire(int capacity) {
+    ArrayDeque<ByteBuffer> buffers = idle.get(capacity);
+    ByteBuffer buffer = buffers != null ? buffers.poll() : null;
+    return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(capacity);
+  }
+
+  /**
+   * Returns a buffer to the pool. The buffer must not be used afterwards.
+   * @param buffer Direct buffer taken out of the pool.
+   */
+  public static synchronized void release(ByteBuffer buffer) {
+    ArrayDeque<ByteBuffer> buffers = idle.computeIfAbsent(buffer.capacity(), capacity -> new ArrayDeque<>());
+    if (buffers.size() < MAX_IDLE) { buffers.push(buffer); }
+  }
+}
@@ -0,0 +1,127 @@
+import java.net.*;
+
+/**
+ * Class representing the options the server was started with.
+ */
+class ServerConfig {
+  // Default burst of a few full sized packets, small enough to stay clear of switch buffer limits.
+  private static final long BURST = 16 * 1400;
+  private static final long CACHE = 64 << 20;
+  private static final long IDLE = 120;
+  private int reactors;
+  private boolean virtual;
+  private boolean mapped;
+  private InetAddress multicast;
+  private long clientRate;
+  private long burst = BURST;
+  private long cache = CACHE;
+  private long idle = IDLE;
+  private long rate;
+
+  /**
+   * Creates a ServerConfig from the command line arguments.
+   * @param args Command line arguments, e.g. "--rate 10000000".
+   * @throws Exception If an argument is unknown or incorrect.
+   */
+  public ServerConfig(String[] args) throws Exception {
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--rate": rate = Long.parseLong(args[++i]);
+          break;
+        case "--client-rate": clientRate = Long.parseLong(args[++i]);
+          break;
+        case "--burst": burst = Long.parseLong(args[++i]);
+          break;
+        case "--reactor": reactors = Integer.parseInt(args[++i]);
+          break;
+        case "--threads": virtual = args[++i].equals("virtual");
+          if (!virtual && !args[i].equals("platform")) { throw new Exception("Threads must be platform or virtual"); }
+          break;
+        case "--mmap": mapped = true;
+          break;
+        case "--cache": cache = Long.parseLong(args[++i]);
+          break;
+        case "--multicast": multicast = InetAddress.getByName(args[++i]);
+          break;
+        case "--idle": idle = Long.parseLong(args[++i]);
+          break;
+        default: throw new Exception("Unknown argument " + args[i]);
+      }
+    }
+    if (idle <= 0) {
+      throw new Exception("Idle timeout must be positive");
+    }
+  }
+
+  /**
+   * Getter for the time after which a transfer whose client has gone quiet is removed.
+   * @return Idle timeout in seconds.
+   */
+  public long getIdle() {
+    return idle;
+  }
+
+  /**
+   * Getter for the global send rate.
+   * @return Rate in bytes per second, or 0 for no limit.
+   */
+  public long getRate() {
+    return rate;
+  }
+
+  /**
+   * Getter for the send rate of each client address.
+   * @return Rate in bytes per second, or 0 for no limit.
+   */
+  public long getClientRate() {
+    return clientRate;
+  }
+
+  /**
+   * Getter for the number of bytes that may be sent back to back before pacing kicks in.
+   * @return Burst in bytes.
+   */
+  public long getBurst() {
+    return burst;
+  }
+
+  /**
+   * Getter for the number of event loops of the reactor server mode.
+   * @return Number of event loops, or 0 to give every stream a thread of its own.
+   */
+  public int getReactors() {
+    return reactors;
+  }
+
+  /**
+   * Getter for whether streams run on virtual threads when every stream has a thread of its own.
+   * @return If streams run on virtual threads.
+   */
+  public boolean isVirtual() {
+    return virtual;
+  }
+
+  /**
+   * Getter for whether requested files are mapped into memory instead of read packet by packet.
+   * @return If requested files are mapped.
+   */
+  public boolean isMapped() {
+    return mapped;
+  }
+
+  /**
+   * Getter for the number of bytes of file contents the server keeps cached.
+   * @return Cache budget in bytes, or 0 to open every file on its own.
+   */
+  public long getCache() {
+    return cache;
+  }
+
+  /**
+   * Getter for the multicast group address popular files are fanned out to.
+   * @return Group address, or null if the server only uses unicast.
+   */
+  public InetAddress getMulticast() {
+    return multicast;
+  }
+}
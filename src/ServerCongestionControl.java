@@ -0,0 +1,39 @@
+/**
+ * Congestion control algorithm that decides how many packets a windowed stream may have in flight,
+ * based on the acknowledgements and losses the stream observes.
+ */
+interface ServerCongestionControl {
+  /**
+   * Returns the congestion window.
+   * @return Number of unacknowledged packets allowed in flight.
+   */
+  int window();
+
+  /**
+   * Called when an acknowledgement covers new packets.
+   * @param packets Number of newly acknowledged packets.
+   * @param rtt Round trip time sample in nanoseconds, or -1 if none of the packets gave one.
+   */
+  void acknowledged(int packets, long rtt);
+
+  /**
+   * Called once per window of packets in which a loss was detected.
+   * @param timeout True if the loss was found by a retransmission timeout rather than by later packets
+   * being acknowledged.
+   */
+  void lost(boolean timeout);
+
+  /**
+   * Creates a congestion control algorithm by name.
+   * @param name Either "reno" or "vegas".
+   * @return Congestion control algorithm.
+   * @throws Exception If the name is unknown.
+   */
+  static ServerCongestionControl create(String name) throws Exception {
+    switch (name) {
+      case "reno": return new ServerRenoControl();
+      case "vegas": return new ServerVegasControl();
+      default: throw new Exception("Unknown congestion control " + name);
+    }
+  }
+}
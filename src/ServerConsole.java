@@ -0,0 +1,40 @@
+import java.util.Scanner;
+
+/**
+ * Thread that reads commands from standard input to change the server's rate limits while it runs,
+ * e.g. "rate 10000000" or "client-rate 1000000".
+ */
+class ServerConsole extends Thread {
+  private ServerPacer pacer;
+
+  /**
+   * Creates a new ServerConsole.
+   * @param pacer Pacer to change the rate limits of.
+   */
+  public ServerConsole(ServerPacer pacer) {
+    this.pacer = pacer;
+    setDaemon(true);
+  }
+
+  /**
+   * Implementation of the Thread.run method.
+   */
+  public void run() {
+    Scanner scanner = new Scanner(System.in);
+    while (scanner.hasNextLine()) {
+      String[] args = scanner.nextLine().trim().split(" +");
+      try {
+        switch (args[0]) {
+          case "rate": pacer.setRate(Long.parseLong(args[1]));
+            break;
+          case "client-rate": pacer.setClientRate(Long.parseLong(args[1]));
+            break;
+          case "": break;
+          default: System.out.println("Unknown command " + args[0]);
+        }
+      } catch (Exception error) {
+        System.out.println("Incorrect format: " + error.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Source that frames packets from a file deflated in memory, for clients that ask for compression. The
+ * client inflates the packets as they join the contiguous run from the first, so only the deflated
+ * bytes are numbered, framed and repaired. The whole file is deflated up front, since the packet count
+ * and the last packet have to be known before the first packet is sent. A preset dictionary both sides
+ * know lets even small files refer back to common strings.
+ */
+class ServerDeflatedSource extends ServerPacketSource {
+  private ByteBuffer content;
+  // Cache and snapshot the deflated file is kept along with, if any.
+  private ServerFileCache cache;
+  private ServerFileSnapshot snapshot;
+
+  /**
+   * Creates a new ServerDeflatedSource.
+   * @param content Read only deflated file.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   */
+  public ServerDeflatedSource(ByteBuffer content, int limit, boolean checked) {
+    this(content, limit, checked, null, null);
+  }
+
+  /**
+   * Creates a new ServerDeflatedSource of the deflated version of a cached snapshot, which shares the
+   * digest of the deflated file with other transfers of the snapshot.
+   * @param content Read only deflated file, see ServerFileCache.deflated.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   * @param cache Cache the snapshot was acquired from, or null.
+   * @param snapshot Snapshot the file was deflated from, or null.
+   */
+  public ServerDeflatedSource(ByteBuffer content, int limit, boolean checked, ServerFileCache cache, ServerFileSnapshot snapshot) {
+    super(content.capacity(), limit, checked);
+    this.content = content;
+    this.cache = cache;
+    this.snapshot = snapshot;
+  }
+
+  public byte[] digest() throws IOException {
+    return snapshot != null ? cache.digest(snapshot, this, true) : sha256();
+  }
+
+  /**
+   * Deflates every byte of a source.
+   * @param source Source to read the file from, which is left open.
+   * @param dictionary Preset dictionary of the deflater, or null for none.
+   * @return Read only deflated file, exactly as large as it needs to be.
+   * @throws IOException If the source cannot be read or the deflated file does not fit in a buffer.
+   */
+  public static ByteBuffer deflate(ServerPacketSource source, byte[] dictionary) throws IOException {
+    Deflater deflater = new Deflater();
+    if (dictionary != null) { deflater.setDictionary(dictionary); }
+    ByteBuffer input = ByteBuffer.allocateDirect(CHUNK);
+    // Text usually deflates to a third of its size or less, so most files never grow the buffer.
+    ByteBuffer output = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE, Math.max(CHUNK, source.length / 2)));
+    try {
+      long offset = 0;
+      do {
+        int length = (int) Math.min(CHUNK, source.length - offset);
+        source.copy(offset, length, input.clear());
+        deflater.setInput(input.flip());
+        if ((offset += length) == source.length) { deflater.finish(); }
+        while (offset == source.length ? !deflater.finished() : !deflater.needsInput()) {
+          if (!output.hasRemaining()) { output = grow(output); }
+          deflater.deflate(output);
+        }
+      } while (offset < source.length);
+    } finally {
+      deflater.end();
+    }
+    // Deflated files may be kept in the cache, so they are copied into a buffer of their own size.
+    return ByteBuffer.allocateDirect(output.position()).put(output.flip()).flip().asReadOnlyBuffer();
+  }
+
+  /**
+   * Copies a full buffer into one twice its size.
+   * @param buffer Full buffer.
+   * @return Larger buffer holding the same bytes, positioned after them.
+   * @throws IOException If the buffer cannot grow any further.
+   */
+  private static ByteBuffer grow(ByteBuffer buffer) throws IOException {
+    if (buffer.capacity() == Integer.MAX_VALUE) {
+      throw new IOException("Deflated file is too large to hold in memory");
+    }
+    ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE, 2L * buffer.capacity()));
+    return grown.put(buffer.flip());
+  }
+
+  protected void copy(long offset, int length, ByteBuffer frame) {
+    frame.put(frame.position(), content, (int) offset, length).position(frame.position() + length);
+  }
+}
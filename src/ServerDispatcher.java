@@ -0,0 +1,175 @@
+import java.io.*;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Handles every request that arrives at the server by dispatching it to the controller of the
+ * client that made it. Requests are handled one at a time, and so are transfers that went idle,
+ * whose clients disappeared without a "file OK" or a last failure. A transfer is idle once its
+ * streams are done and its client has sent nothing for the idle timeout, which the timing wheel
+ * checks without any work on the path of a control message, see expire.
+ */
+class ServerDispatcher {
+  private DatagramChannel channel;
+  private ServerPacer pacer;
+  private ServerScheduler scheduler;
+  private ServerFileStore store;
+  private ServerMulticast multicast;
+  private ServerSessionTable controllers = new ServerSessionTable();
+  private ServerTimingWheel wheel;
+  private long idle;
+
+  /**
+   * Creates a new ServerDispatcher.
+   * @param channel Channel to stream packets over.
+   * @param pacer Pacer to limit the send rate of every stream with.
+   * @param scheduler Scheduler to start streams on.
+   * @param store Store to open requested files from.
+   * @param multicast Multicast fan-out for clients that ask for it, or null to always use unicast.
+   * @param wheel Timing wheel to time out idle transfers on.
+   * @param idle Idle timeout in nanoseconds.
+   */
+  public ServerDispatcher(DatagramChannel channel, ServerPacer pacer, ServerScheduler scheduler, ServerFileStore store, ServerMulticast multicast, ServerTimingWheel wheel, long idle) {
+    this.channel = channel;
+    this.pacer = pacer;
+    this.scheduler = scheduler;
+    this.store = store;
+    this.multicast = multicast;
+    this.wheel = wheel;
+    this.idle = idle;
+  }
+
+  /**
+   * Logs and dispatches a request to the handler of its action.
+   * @param request Request to handle.
+   * @throws Exception If anything bad happened.
+   */
+  public synchronized void handle(ServerRequest request) throws Exception {
+    // Acknowledgements arrive for every other packet, so they are left out of the log.
+    if (request.getAction() != ServerRequest.Action.Acknowledge) {
+      System.out.println("[RECV] " + request.ID() + " " + request.describe());
+    }
+    switch (request.getAction()) {
+      case Acknowledge: this.acknowledge(request);
+        break;
+      case Success: this.success(request);
+        break;
+      case Failure: this.failure(request);
+        break;
+      case Abort: this.abort(request);
+        break;
+      case Transmit: this.transmit(request);
+    }
+  }
+
+  /**
+   * Handler for a failure server request.
+   * Attempts to retransmit the packets the client is missing. If that's not possible, it removes the
+   * current controller and prints a QUIT log to the console.
+   * @param request Request that was marked as a failure.
+   * @throws Exception If anything bad happened.
+   */
+  private void failure(ServerRequest request) throws Exception {
+    ServerRequestController controller = controllers.get(request.getAddress(), request.getPort(), request.getSession());
+    if (controller == null) { return; }
+    controller.touch();
+    if (!controller.retry(request)) {
+      System.out.println("[QUIT] " + controller.ID());
+      remove(controller);
+    }
+  }
+
+  /**
+   * Handler for an abort server request.
+   * Removes the controller of a transfer the client gave up on, which stops its streams and releases
+   * its file and pacer right away instead of waiting for the transfer to go idle.
+   * @param request Request that was marked as an abort.
+   * @throws IOException If the controller cannot be shut down.
+   */
+  private void abort(ServerRequest request) throws IOException {
+    ServerRequestController controller = controllers.get(request.getAddress(), request.getPort(), request.getSession());
+    if (controller == null) { return; }
+    System.out.println("[QUIT] " + controller.ID());
+    remove(controller);
+  }
+
+  /**
+   * Handler for an acknowledgement server request.
+   * Passes the acknowledgement on to the controller of a windowed stream.
+   * @param request Request that was marked as an acknowledgement.
+   */
+  private void acknowledge(ServerRequest request) {
+    ServerRequestController controller = controllers.get(request.getAddress(), request.getPort(), request.getSession());
+    if (controller != null) {
+      controller.touch();
+      controller.acknowledge(request);
+    }
+  }
+
+  /**
+   * Handler for a success server request.
+   * Prints an OK log to the console and removes the controller from the current list of controllers.
+   * @param request Request that was marked as a success.
+   * @throws IOException If the controller cannot be shut down.
+   */
+  private void success(ServerRequest request) throws IOException {
+    System.out.println("[SUCC] " + request.ID() + " address OK");
+    ServerRequestController controller = controllers.get(request.getAddress(), request.getPort(), request.getSession());
+    if (controller != null) { remove(controller); }
+  }
+
+  /**
+   * Handler for a transmit server request.
+   * Creates a new ServerRequestController and starts the controller threads.
+   * @param request Request that was marked as a success.
+   * @throws Exception If anything bad happened.
+   */
+  private void transmit(ServerRequest request) throws Exception {
+    ServerRequestController controller = new ServerRequestController(request, channel, pacer, scheduler, store, multicast);
+    controller.start();
+    controller.setTimer(new ServerTimingWheel.Timer() {
+      protected void expire() { ServerDispatcher.this.expire(controller); }
+    });
+    ServerRequestController previous = controllers.put(request.getAddress(), request.getPort(), request.getSession(), controller);
+    if (previous != null) {
+      wheel.cancel(previous.getTimer());
+      previous.shutdown();
+    }
+    wheel.schedule(controller.getTimer(), idle);
+  }
+
+  /**
+   * Removes a transfer, stops its idle timer and shuts its controller down.
+   * @param controller Controller of the transfer.
+   * @throws IOException If the controller cannot be shut down.
+   */
+  private void remove(ServerRequestController controller) throws IOException {
+    controllers.remove(controller.getAddress(), controller.getPort(), controller.getSession());
+    wheel.cancel(controller.getTimer());
+    controller.shutdown();
+  }
+
+  /**
+   * Handles the idle timer of a transfer, which removes the transfer if it is idle and otherwise
+   * schedules the timer again for when it would be. Control messages only note the time they arrived
+   * at, so a busy transfer costs the wheel one look per idle timeout instead of every message moving
+   * its timer.
+   * @param controller Controller of the transfer.
+   */
+  private synchronized void expire(ServerRequestController controller) {
+    if (controllers.get(controller.getAddress(), controller.getPort(), controller.getSession()) != controller) { return; }
+    long now = System.nanoTime();
+    // A transfer whose streams are still sending counts as active for as long as they do.
+    if (controller.isStreaming()) { controller.touch(); }
+    long left = controller.getTouched() + idle - now;
+    if (left > 0) {
+      wheel.schedule(controller.getTimer(), left);
+      return;
+    }
+    System.out.println("[IDLE] " + controller.ID());
+    try {
+      remove(controller);
+    } catch (IOException error) {
+      error.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,144 @@
+import java.net.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event loop of the reactor server mode. Every loop selects on the server's non-blocking channel and
+ * pumps the streams attached to it whenever they are woken up, their timer expires, or their channel
+ * becomes writable again after a full send buffer. One loop also receives the server's requests.
+ */
+class ServerEventLoop extends Thread {
+  private Selector selector;
+  private SelectionKey key;
+  private DatagramChannel channel;
+  private ServerDispatcher dispatcher;
+  private ByteBuffer buffer = ByteBuffer.allocate(ControlMessage.MAX_LENGTH);
+  // Request every datagram is read into, since requests are handled one at a time.
+  private ServerRequest request = new ServerRequest();
+  // Streams woken up from any thread. Streams waiting for a channel to become writable are queued on
+  // the key of that channel.
+  private ConcurrentLinkedQueue<ServerStream> woken = new ConcurrentLinkedQueue<>();
+  // Timers of the streams, where a timer is stale once its stream has been scheduled for another time.
+  private PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::deadline));
+
+  /**
+   * Time a stream should be pumped again at.
+   */
+  private record Timer(long deadline, ServerStream stream) {}
+
+  /**
+   * Creates a new ServerEventLoop.
+   * @param channel Non-blocking channel bound to the server's port.
+   * @param dispatcher Dispatcher to handle received requests with, or null if this loop does not
+   * receive requests.
+   * @throws IOException If the selector cannot be opened.
+   */
+  public ServerEventLoop(DatagramChannel channel, ServerDispatcher dispatcher) throws IOException {
+    this.channel = channel;
+    this.dispatcher = dispatcher;
+    this.selector = Selector.open();
+    this.key = channel.register(selector, dispatcher != null ? SelectionKey.OP_READ : 0, new ArrayDeque<ServerStream>());
+  }
+
+  /**
+   * Queues a stream to be pumped by this loop. Can be called from any thread.
+   * @param stream Stream to pump.
+   */
+  public void wake(ServerStream stream) {
+    woken.add(stream);
+    selector.wakeup();
+  }
+
+  /**
+   * Implementation of the Thread.run method.
+   */
+  public void run() {
+    while (channel.isOpen()) {
+      try {
+        Timer first = timers.peek();
+        long wait = first == null ? 0 : first.deadline() - System.nanoTime();
+        // The selector only waits in whole milliseconds, so shorter waits for the pacer are polled.
+        if (!woken.isEmpty() || (first != null && wait < 1_000_000)) {
+          selector.selectNow();
+        } else {
+          selector.select(wait / 1_000_000);
+        }
+        for (SelectionKey selected : selector.selectedKeys()) {
+          // The channel of a worker may have been closed since it was selected.
+          if (!selected.isValid()) { continue; }
+          if (selected.isReadable()) { receive(); }
+          if (selected.isWritable()) {
+            selected.interestOps(selected.interestOps() & ~SelectionKey.OP_WRITE);
+            woken.addAll(waiting(selected));
+            waiting(selected).clear();
+          }
+        }
+        selector.selectedKeys().clear();
+        for (ServerStream stream; (stream = woken.poll()) != null; ) { pump(stream); }
+        long now = System.nanoTime();
+        while ((first = timers.peek()) != null && first.deadline() <= now) {
+          timers.poll();
+          if (first.deadline() == first.stream().deadline) { pump(first.stream()); }
+        }
+      } catch (ClosedChannelException error) {
+        return;
+      } catch (IOException error) {
+        error.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Receives every request waiting on the channel and dispatches them.
+   * @throws IOException If the channel cannot be read.
+   */
+  private void receive() throws IOException {
+    for (InetSocketAddress sender; (sender = (InetSocketAddress) channel.receive(buffer.clear())) != null; ) {
+      try {
+        dispatcher.handle(request.read(buffer.flip(), sender));
+      } catch (Exception error) {
+        error.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Returns the streams waiting for the channel of a key to become writable.
+   * @param key Key of the channel.
+   * @return Waiting streams.
+   */
+  @SuppressWarnings("unchecked")
+  private static ArrayDeque<ServerStream> waiting(SelectionKey key) {
+    return (ArrayDeque<ServerStream>) key.attachment();
+  }
+
+  /**
+   * Pumps a stream and schedules it according to what it wants to happen next.
+   * @param stream Stream to pump.
+   */
+  private void pump(ServerStream stream) {
+    long deadline = stream.deadline = stream.step(System.nanoTime());
+    if (deadline == ServerStream.BLOCKED) {
+      // Workers and multicast groups stream over channels of their own, which get keys of their own.
+      try {
+        SelectionKey blocked = stream.channel.keyFor(selector);
+        if (blocked == null) { blocked = stream.channel.register(selector, 0, new ArrayDeque<ServerStream>()); }
+        waiting(blocked).add(stream);
+        blocked.interestOps(blocked.interestOps() | SelectionKey.OP_WRITE);
+      } catch (ClosedChannelException | CancelledKeyException error) {
+        stream.deadline = ServerStream.DONE;
+      }
+    } else if (deadline != ServerStream.DONE && deadline != ServerStream.IDLE) {
+      timers.add(new Timer(deadline, stream));
+    }
+  }
+}
@@ -0,0 +1,267 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Server wide cache of file contents, so that concurrent transfers of the same file share one copy in
+ * memory instead of reading the file each. Files are keyed by their canonical path and a cached copy
+ * is only used while the file's size and last modified time still match it. The least recently used
+ * snapshots that no transfer has pinned are evicted to stay within a byte budget, and the directories
+ * of cached files are watched so that changed files are dropped as soon as they change.
+ */
+class ServerFileCache extends Thread {
+  // Number of times a file that keeps changing while it is loaded is read before giving up.
+  private static final int LOAD_ATTEMPTS = 3;
+  private long budget;
+  private long size;
+  // Access ordered, so iteration starts at the least recently used snapshot.
+  private LinkedHashMap<Path, ServerFileSnapshot> snapshots = new LinkedHashMap<>(16, 0.75f, true);
+  private HashSet<Path> directories = new HashSet<>();
+  private WatchService watcher;
+
+  /**
+   * Creates a new ServerFileCache.
+   * @param budget Maximum number of bytes of file contents to keep cached.
+   * @throws IOException If the file system cannot be watched.
+   */
+  public ServerFileCache(long budget) throws IOException {
+    this.budget = budget;
+    this.watcher = FileSystems.getDefault().newWatchService();
+    setDaemon(true);
+  }
+
+  /**
+   * Pins a snapshot of the current version of the file, loading it if it is not cached yet. Every
+   * snapshot acquired must be released again.
+   * @param path Canonical path of the file.
+   * @return Pinned snapshot, or null if the file is larger than the whole budget.
+   * @throws IOException If the file cannot be read.
+   */
+  public ServerFileSnapshot acquire(Path path) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    synchronized (this) {
+      ServerFileSnapshot snapshot = snapshots.get(path);
+      if (snapshot != null && snapshot.matches(attributes)) {
+        snapshot.pins++;
+        return snapshot;
+      }
+    }
+    if (attributes.size() > Math.min(budget, Integer.MAX_VALUE)) { return null; }
+    ServerFileSnapshot snapshot = load(path);
+    if (snapshot == null) { return null; }
+    synchronized (this) {
+      snapshot.pins++;
+      remove(snapshots.get(path));
+      // With everything else pinned the snapshot is still served, it just is not kept afterwards.
+      if (evict(snapshot.size)) {
+        snapshots.put(path, snapshot);
+        size += snapshot.size;
+        snapshot.cached = true;
+      }
+    }
+    try {
+      watch(path.getParent());
+    } catch (IOException error) {
+      release(snapshot);
+      throw error;
+    }
+    return snapshot;
+  }
+
+  /**
+   * Returns every packet of a pinned snapshot framed the way the given source frames them,
+   * framing them the first time they are asked for. Framed packets are kept along with the snapshot
+   * and count towards the budget, and room for them is reserved before they are framed, so packets
+   * that could not be kept are never framed.
+   * @param snapshot Pinned snapshot.
+   * @param source Source that frames packets from the snapshot.
+   * @return Framed packets at a stride of limit bytes, or null if the snapshot is not cached or they
+   * do not fit within the budget or in a buffer.
+   * @throws IOException If the source cannot be read.
+   */
+  public ByteBuffer frames(ServerFileSnapshot snapshot, ServerPacketSource source) throws IOException {
+    long bytes = (long) source.count() * source.getLimit();
+    synchronized (this) {
+      ByteBuffer frames = snapshot.frames.get(source.framing());
+      if (frames != null) { return frames; }
+      if (!snapshot.cached || bytes > Integer.MAX_VALUE || !evict(bytes)) { return null; }
+      snapshot.size += bytes;
+      size += bytes;
+    }
+    ByteBuffer frames = null;
+    try {
+      frames = ServerFramedSource.frame(source);
+    } finally {
+      synchronized (this) {
+        if (frames != null && !snapshot.frames.containsKey(source.framing())) {
+          snapshot.frames.put(source.framing(), frames);
+        } else {
+          // Framing failed or another stream framed the snapshot first, so the reserved room is given
+          // back. A snapshot that is no longer cached already gave back all of its room.
+          snapshot.size -= bytes;
+          if (snapshot.cached) { size -= bytes; }
+        }
+      }
+    }
+    return frames;
+  }
+
+  /**
+   * Returns the deflated version of a pinned snapshot, deflating it the first time it is asked for. The
+   * deflated version is kept along with the snapshot and counts towards the budget.
+   * @param snapshot Pinned snapshot.
+   * @param source Source that frames packets from the snapshot.
+   * @return Read only deflated file.
+   * @throws IOException If the source cannot be read.
+   */
+  public ByteBuffer deflated(ServerFileSnapshot snapshot, ServerPacketSource source) throws IOException {
+    synchronized (this) {
+      if (snapshot.deflated != null) { return snapshot.deflated; }
+    }
+    ByteBuffer deflated = ServerDeflatedSource.deflate(source, null);
+    synchronized (this) {
+      if (snapshot.cached && snapshot.deflated == null && evict(deflated.capacity())) {
+        snapshot.deflated = deflated;
+        snapshot.size += deflated.capacity();
+        size += deflated.capacity();
+      }
+    }
+    return deflated;
+  }
+
+  /**
+   * Returns the digest of a pinned snapshot or of its deflated version, computing it the first time it
+   * is asked for. Digests are kept along with the snapshot whether or not it is still cached.
+   * @param snapshot Pinned snapshot.
+   * @param source Source that frames packets from the snapshot or from its deflated version.
+   * @param deflated If the digest is of the deflated version.
+   * @return Digest of the file.
+   * @throws IOException If the source cannot be read.
+   */
+  public byte[] digest(ServerFileSnapshot snapshot, ServerPacketSource source, boolean deflated) throws IOException {
+    synchronized (this) {
+      byte[] digest = deflated ? snapshot.deflatedDigest : snapshot.digest;
+      if (digest != null) { return digest; }
+    }
+    byte[] digest = source.sha256();
+    synchronized (this) {
+      if (deflated) { snapshot.deflatedDigest = digest; } else { snapshot.digest = digest; }
+    }
+    return digest;
+  }
+
+  /**
+   * Evicts the least recently used snapshots that are not pinned until the given number of bytes fit
+   * within the budget. Called with the lock held.
+   * @param bytes Number of bytes to make room for.
+   * @return True if the bytes fit within the budget.
+   */
+  private boolean evict(long bytes) {
+    for (Iterator<ServerFileSnapshot> iterator = snapshots.values().iterator(); size + bytes > budget && iterator.hasNext(); ) {
+      ServerFileSnapshot eldest = iterator.next();
+      if (eldest.pins > 0) { continue; }
+      iterator.remove();
+      size -= eldest.size;
+      eldest.cached = false;
+      System.out.println("[EVCT] " + eldest.getPath());
+    }
+    return size + bytes <= budget;
+  }
+
+  /**
+   * Unpins a snapshot acquired before.
+   * @param snapshot Snapshot to unpin.
+   */
+  public synchronized void release(ServerFileSnapshot snapshot) {
+    snapshot.pins--;
+  }
+
+  /**
+   * Reads the whole file into memory. The file is read again if it changed while it was being read,
+   * so that the snapshot is never a mix of two versions.
+   * @param path Canonical path of the file.
+   * @return Snapshot of the file, or null if it kept changing.
+   * @throws IOException If the file cannot be read.
+   */
+  private ServerFileSnapshot load(Path path) throws IOException {
+    for (int attempt = 0; attempt < LOAD_ATTEMPTS; attempt++) {
+      try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+        FileTime modified = Files.getLastModifiedTime(path);
+        ByteBuffer content = ByteBuffer.allocateDirect((int) file.size());
+        while (content.hasRemaining() && file.read(content, content.position()) != -1) {}
+        if (!content.hasRemaining() && file.size() == content.capacity() && Files.getLastModifiedTime(path).equals(modified)) {
+          System.out.println("[LOAD] " + path + " " + content.capacity() + " bytes");
+          return new ServerFileSnapshot(path, modified, content.flip().asReadOnlyBuffer());
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Drops a snapshot from the cache. Transfers that pinned it keep framing packets from it.
+   * Called with the lock held.
+   * @param snapshot Snapshot to drop, or null.
+   */
+  private void remove(ServerFileSnapshot snapshot) {
+    if (snapshot == null || !snapshot.cached) { return; }
+    snapshots.remove(snapshot.getPath());
+    size -= snapshot.size;
+    snapshot.cached = false;
+  }
+
+  /**
+   * Starts watching the directory of a cached file for changes.
+   * @param directory Directory to watch.
+   * @throws IOException If the directory cannot be watched.
+   */
+  private synchronized void watch(Path directory) throws IOException {
+    if (!directories.contains(directory)) {
+      directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+      directories.add(directory);
+    }
+  }
+
+  /**
+   * Implementation of the Thread.run method. Drops the snapshot of every file that changes.
+   */
+  public void run() {
+    try {
+      while (true) {
+        WatchKey key = watcher.take();
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          synchronized (this) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+              // Events were lost, so any file in the directory may have changed.
+              for (ServerFileSnapshot snapshot : new ArrayList<>(snapshots.values())) {
+                if (snapshot.getPath().startsWith(directory)) { remove(snapshot); }
+              }
+            } else {
+              remove(snapshots.get(directory.resolve((Path) event.context())));
+            }
+          }
+        }
+        if (!key.reset()) {
+          synchronized (this) { directories.remove(directory); }
+        }
+      }
+    } catch (InterruptedException error) {
+      error.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,60 @@
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+
+/**
+ * Contents of a file as they were when it was loaded, along with the attributes that identify that
+ * version of the file.
+ */
+class ServerFileSnapshot {
+  private Path path;
+  private long length;
+  // Bytes of memory held by the snapshot, including its framed packets.
+  long size;
+  private FileTime modified;
+  private ByteBuffer content;
+  // Packets framed from this snapshot, by framing key, see ServerPacketSource.framing.
+  HashMap<Integer, ByteBuffer> frames = new HashMap<>();
+  // Deflated version of this snapshot, or null until a client asks for it.
+  ByteBuffer deflated;
+  // Digests of the snapshot and of its deflated version, or null until a client asks for them.
+  byte[] digest;
+  byte[] deflatedDigest;
+  // Number of transfers currently framing packets from this snapshot.
+  int pins;
+  // Whether the snapshot still counts towards the cache's budget.
+  boolean cached;
+
+  /**
+   * Creates a new ServerFileSnapshot.
+   * @param path Canonical path of the file.
+   * @param modified Last modified time of the file when it was loaded.
+   * @param content Read only contents of the file.
+   */
+  public ServerFileSnapshot(Path path, FileTime modified, ByteBuffer content) {
+    this.path = path;
+    this.length = content.capacity();
+    this.size = length;
+    this.modified = modified;
+    this.content = content;
+  }
+
+  /**
+   * Returns if this snapshot is of the version of the file with the given attributes.
+   * @param attributes Current attributes of the file.
+   * @return True if the size and last modified time match.
+   */
+  public boolean matches(BasicFileAttributes attributes) {
+    return attributes.size() == length && attributes.lastModifiedTime().equals(modified);
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  public ByteBuffer getContent() {
+    return content;
+  }
+}
@@ -0,0 +1,34 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Source that reads every packet from the file with a positional read.
+ */
+class ServerFileSource extends ServerPacketSource {
+  private FileChannel file;
+
+  /**
+   * Creates a new ServerFileSource.
+   * @param file Open file to read packets from.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   * @throws IOException If the size of the file cannot be read.
+   */
+  public ServerFileSource(FileChannel file, int limit, boolean checked) throws IOException {
+    super(file.size(), limit, checked);
+    this.file = file;
+  }
+
+  protected void copy(long offset, int length, ByteBuffer frame) throws IOException {
+    int end = frame.position() + length;
+    frame.limit(end);
+    // Loop over the read until the buffer limit or EOF is reached, otherwise there is a chance that
+    // there will be less bytes in the packet than the intended limit.
+    while (frame.hasRemaining() && file.read(frame, offset + length - frame.remaining()) != -1) {}
+  }
+
+  public void close() throws IOException {
+    file.close();
+  }
+}
@@ -0,0 +1,397 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Opens the files requested from the server as packet sources. Files are served from a snapshot in the
+ * ServerFileCache when there is one, and are otherwise either read on demand or mapped. Deflated files
+ * come from a sidecar deflated ahead of time when there is one.
+ */
+class ServerFileStore {
+  // Extension of a sidecar that holds the deflated version of the file next to it.
+  public static final String SIDECAR = ".deflate";
+  // Largest preset dictionary, which is as far back as the deflater's window reaches.
+  public static final int DICTIONARY_LIMIT = 32 * 1024;
+  // Dictionaries kept at most, each no larger than DICTIONARY_LIMIT.
+  private static final int DICTIONARIES = 64;
+  // Digests kept at most, and the threads that hash, deflate and sign whole files.
+  private static final int DIGESTS = 1024;
+  private static final int WORKERS = 2;
+  private boolean mapped;
+  private ServerFileCache cache;
+  // Dictionaries read so far by real path, least recently used first.
+  private LinkedHashMap<Path, Dictionary> dictionaries = new LinkedHashMap<>(16, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<Path, Dictionary> eldest) {
+      return size() > DICTIONARIES;
+    }
+  };
+
+  // Digests of files and ranges of files as they are on disk, least recently used first.
+  private LinkedHashMap<String, Digest> digests = new LinkedHashMap<>(16, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<String, Digest> eldest) {
+      return size() > DIGESTS;
+    }
+  };
+  // Hashing, deflating or signing a large file takes seconds, so it is done away from the requests.
+  private ExecutorService workers = Executors.newFixedThreadPool(WORKERS, task -> {
+    Thread thread = new Thread(task, "store");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Digest of a file or a range of it, along with the attributes of the version of the file it is
+   * computed from, and the callbacks waiting for it while it is computed.
+   */
+  private static class Digest {
+    private String key;
+    private long size;
+    private FileTime modified;
+    private byte[] value;
+    private ArrayList<Consumer<byte[]>> waiting = new ArrayList<>();
+  }
+
+  /**
+   * Preset dictionary along with the attributes of the version of the file it was read from.
+   */
+  private static class Dictionary {
+    private byte[] content;
+    private long size;
+    private FileTime modified;
+  }
+
+  /**
+   * Creates a new ServerFileStore.
+   * @param mapped Whether uncached files are mapped into memory instead of read packet by packet.
+   * @param cache Cache to serve files from, or null to open every file on its own.
+   */
+  public ServerFileStore(boolean mapped, ServerFileCache cache) {
+    this.mapped = mapped;
+    this.cache = cache;
+  }
+
+  /**
+   * Returns the preset dictionary held by a file, which is its last DICTIONARY_LIMIT bytes since the
+   * deflater cannot refer back any further. Only regular files are read, and a dictionary is read once
+   * per version of its file.
+   * @param filename Name of the dictionary file.
+   * @return Dictionary.
+   * @throws IOException If the file cannot be read or is not a regular file.
+   */
+  public synchronized byte[] dictionary(String filename) throws IOException {
+    Path path = Paths.get(filename).toRealPath();
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    if (!attributes.isRegularFile()) {
+      throw new IOException("Dictionary " + path + " is not a regular file");
+    }
+    Dictionary dictionary = dictionaries.get(path);
+    if (dictionary != null && dictionary.size == attributes.size() && dictionary.modified.equals(attributes.lastModifiedTime())) {
+      return dictionary.content;
+    }
+    dictionary = new Dictionary();
+    try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = file.size();
+      ByteBuffer content = ByteBuffer.allocate((int) Math.min(size, DICTIONARY_LIMIT));
+      long start = size - content.capacity();
+      while (content.hasRemaining() && file.read(content, start + content.position()) != -1) {}
+      dictionary.content = Arrays.copyOf(content.array(), content.position());
+    }
+    dictionary.size = attributes.size();
+    dictionary.modified = attributes.lastModifiedTime();
+    dictionaries.put(path, dictionary);
+    return dictionary.content;
+  }
+
+  /**
+   * Computes the digest of everything a source sends on a thread of the store, and hands it over once
+   * done. Digests of a file or a range of it as it is on disk are kept by real path and range along
+   * with the size and modification time of the file, so each version is hashed once whether or not it
+   * is cached, and a request for a digest that is being computed waits for it.
+   * @param source Source to digest, which must stay open until the digest is handed over.
+   * @param filename Name of the file the source sends as it is on disk, or null if the source sends
+   * something else, such as the deflated file.
+   * @param offset Offset of the range the source sends.
+   * @param length Length of the range, or -1 for the rest of the file.
+   * @param done Callback that takes the digest, or null if the source cannot be read. A digest that is
+   * known already is handed over right away on the calling thread.
+   * @throws IOException If the attributes of the file cannot be read.
+   */
+  public void digest(ServerPacketSource source, String filename, long offset, long length, Consumer<byte[]> done) throws IOException {
+    if (filename == null) {
+      workers.execute(() -> done.accept(compute(source)));
+      return;
+    }
+    Path path = Paths.get(filename).toRealPath();
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    byte[] value;
+    synchronized (this) {
+      String key = path + " " + offset + " " + length;
+      Digest digest = digests.get(key);
+      if (digest == null || digest.size != attributes.size() || !digest.modified.equals(attributes.lastModifiedTime())) {
+        Digest computing = new Digest();
+        computing.key = key;
+        computing.size = attributes.size();
+        computing.modified = attributes.lastModifiedTime();
+        computing.waiting.add(done);
+        digests.put(key, computing);
+        workers.execute(() -> finish(computing, path, compute(source)));
+        return;
+      }
+      if (digest.value == null) {
+        digest.waiting.add(done);
+        return;
+      }
+      value = digest.value;
+    }
+    done.accept(value);
+  }
+
+  /**
+   * Computes the digest of a source.
+   * @param source Source to digest.
+   * @return Digest, or null if the source cannot be read.
+   */
+  private static byte[] compute(ServerPacketSource source) {
+    try {
+      return source.digest();
+    } catch (IOException error) {
+      error.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Keeps a computed digest and hands it to every callback waiting for it. A digest is dropped if it
+   * could not be computed or the file changed while it was hashed, so that it is computed again.
+   * @param digest Digest that was computed.
+   * @param path Real path of the file.
+   * @param value Value of the digest, or null if it could not be computed.
+   */
+  private void finish(Digest digest, Path path, byte[] value) {
+    BasicFileAttributes attributes = null;
+    try {
+      attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (IOException error) {
+      // The file is gone, so the digest is of no further use.
+    }
+    ArrayList<Consumer<byte[]>> waiting;
+    synchronized (this) {
+      digest.value = value;
+      waiting = digest.waiting;
+      digest.waiting = null;
+      if (value == null || attributes == null || attributes.size() != digest.size || !attributes.lastModifiedTime().equals(digest.modified)) {
+        digests.remove(digest.key, digest);
+      }
+    }
+    for (Consumer<byte[]> done : waiting) { done.accept(value); }
+  }
+
+  /**
+   * Opens a file as a packet source.
+   * @param filename Name of the file to frame packets from.
+   * @param limit Packet size limit for each framed packet.
+   * @return Packet source of the file.
+   * @throws IOException If the file cannot be opened.
+   */
+  public ServerPacketSource open(String filename, int limit) throws IOException {
+    return open(filename, limit, false);
+  }
+
+  /**
+   * Opens a file as a packet source whose packets may end in a checksum.
+   * @param filename Name of the file to frame packets from.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   * @return Packet source of the file.
+   * @throws IOException If the file cannot be opened.
+   */
+  public ServerPacketSource open(String filename, int limit, boolean checked) throws IOException {
+    ServerFileSnapshot snapshot = cache != null ? cache.acquire(Paths.get(filename).toRealPath()) : null;
+    if (snapshot != null) {
+      ServerSnapshotSource source = new ServerSnapshotSource(cache, snapshot, limit, checked);
+      try {
+        ByteBuffer frames = cache.frames(snapshot, source);
+        return frames != null ? new ServerFramedSource(source, frames) : source;
+      } catch (IOException error) {
+        source.close();
+        throw error;
+      }
+    }
+    return file(Paths.get(filename), limit, checked);
+  }
+
+  /**
+   * Opens a range of a file as a packet source. A cached file frames the range from its snapshot, and
+   * otherwise the range is read from the file with positional reads or only the range is mapped.
+   * @param filename Name of the file to frame packets from.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   * @param offset Offset of the range in the file.
+   * @param length Length of the range, which is cut short at the end of the file, or -1 for the rest of
+   * the file.
+   * @return Packet source of the range.
+   * @throws IOException If the file cannot be opened or the range starts beyond its end.
+   */
+  public ServerPacketSource range(String filename, int limit, boolean checked, long offset, long length) throws IOException {
+    Path path = Paths.get(filename).toRealPath();
+    ServerFileSnapshot snapshot = cache != null ? cache.acquire(path) : null;
+    ServerPacketSource source;
+    if (snapshot != null) {
+      source = new ServerSnapshotSource(cache, snapshot, limit, checked);
+    } else {
+      FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+      if (mapped) {
+        try (file) {
+          return new ServerMappedSource(file, offset, end(file.size(), offset, length) - offset, limit, checked);
+        }
+      }
+      source = new ServerFileSource(file, limit, checked);
+    }
+    try {
+      return new ServerRangeSource(source, offset, end(source.length, offset, length) - offset);
+    } catch (IOException error) {
+      source.close();
+      throw error;
+    }
+  }
+
+  /**
+   * Returns the end of a range within a file.
+   * @param size Length of the file.
+   * @param offset Offset of the range in the file.
+   * @param length Length of the range, or -1 for the rest of the file.
+   * @return Offset one past the last byte of the range.
+   * @throws IOException If the range starts beyond the end of the file.
+   */
+  private static long end(long size, long offset, long length) throws IOException {
+    if (offset > size) {
+      throw new IOException("Range starts at " + offset + " beyond the end of the file at " + size);
+    }
+    return length < 0 ? size : Math.min(size, offset + length);
+  }
+
+  /**
+   * Opens a file as a packet source of its deflated version. A sidecar named after the file with the
+   * SIDECAR extension that is at least as new as the file is served as it is, like any other file, so
+   * that serving it costs no compression at all. Otherwise the file is deflated, and the deflated
+   * version is kept along with a cached snapshot so that it is only deflated once per version. Sidecars
+   * and kept versions are deflated without a dictionary, so they only serve requests without one.
+   * @param filename Name of the file to frame packets from.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   * @param dictionary Preset dictionary to deflate with, or null for none.
+   * @return Packet source of the deflated file.
+   * @throws IOException If the file cannot be opened.
+   */
+  public ServerPacketSource deflate(String filename, int limit, boolean checked, byte[] dictionary) throws IOException {
+    Path path = Paths.get(filename).toRealPath();
+    Path sidecar = Paths.get(path + SIDECAR);
+    if (dictionary == null && Files.isRegularFile(sidecar) && Files.getLastModifiedTime(sidecar).compareTo(Files.getLastModifiedTime(path)) >= 0) {
+      System.out.println("[SIDE] " + sidecar);
+      return open(sidecar.toString(), limit, checked);
+    }
+    ServerFileSnapshot snapshot = cache != null ? cache.acquire(path) : null;
+    ServerPacketSource source = snapshot != null ? new ServerSnapshotSource(cache, snapshot, limit, checked) : file(path, limit, checked);
+    try {
+      if (snapshot != null && dictionary == null) {
+        return new ServerDeflatedSource(cache.deflated(snapshot, source), limit, checked, cache, snapshot);
+      }
+      return new ServerDeflatedSource(ServerDeflatedSource.deflate(source, dictionary), limit, checked);
+    } finally {
+      source.close();
+    }
+  }
+
+  /**
+   * Deflates a file on a worker of the store, see deflate, since deflating reads the whole file. The
+   * callback runs on the worker once the deflated file is ready or could not be opened.
+   * @param filename Name of the file to frame packets from.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   * @param dictionary Preset dictionary to deflate with, or null for none.
+   * @param done Callback handed the packet source of the deflated file, or the error instead.
+   */
+  public void deflate(String filename, int limit, boolean checked, byte[] dictionary, BiConsumer<ServerPacketSource, Exception> done) {
+    later(() -> deflate(filename, limit, checked, dictionary), done);
+  }
+
+  /**
+   * Opens the signature of a file as a packet source, signed in blocks as large as the payload of the
+   * packets the file itself is framed with at the same limit, see ServerSignatureSource.
+   * @param filename Name of the file to sign.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   * @return Packet source of the signature.
+   * @throws IOException If the file cannot be opened.
+   */
+  public ServerPacketSource sign(String filename, int limit, boolean checked) throws IOException {
+    ServerPacketSource source = open(filename, limit, checked);
+    try {
+      return new ServerSignatureSource(ServerSignatureSource.sign(source), limit, checked);
+    } finally {
+      source.close();
+    }
+  }
+
+  /**
+   * Signs a file on a worker of the store, see sign, since signing reads the whole file. The callback
+   * runs on the worker once the signature is ready or the file could not be opened.
+   * @param filename Name of the file to sign.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   * @param done Callback handed the packet source of the signature, or the error instead.
+   */
+  public void sign(String filename, int limit, boolean checked, BiConsumer<ServerPacketSource, Exception> done) {
+    later(() -> sign(filename, limit, checked), done);
+  }
+
+  /**
+   * Opens a packet source on a worker of the store and hands it, or the error that kept it from
+   * opening, to the callback.
+   * @param open Opens the packet source.
+   * @param done Callback handed the packet source, or the error instead.
+   */
+  private void later(Callable<ServerPacketSource> open, BiConsumer<ServerPacketSource, Exception> done) {
+    workers.execute(() -> {
+      ServerPacketSource source;
+      try {
+        source = open.call();
+      } catch (Exception error) {
+        done.accept(null, error);
+        return;
+      }
+      done.accept(source, null);
+    });
+  }
+
+  /**
+   * Opens a file that is not cached as a packet source.
+   * @param path Path of the file.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   * @return Packet source of the file.
+   * @throws IOException If the file cannot be opened.
+   */
+  private ServerPacketSource file(Path path, int limit, boolean checked) throws IOException {
+    FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+    if (!mapped) { return new ServerFileSource(file, limit, checked); }
+    try (file) {
+      return new ServerMappedSource(file, limit, checked);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Source that serves packets that were all framed up front, back to back at a stride of limit bytes
+ * in one buffer. Reading a packet only moves a stream's view of that buffer onto it, so sending a
+ * packet copies nothing until the channel hands it to the socket.
+ */
+class ServerFramedSource extends ServerPacketSource {
+  private ServerPacketSource source;
+  private ByteBuffer frames;
+
+  /**
+   * Creates a new ServerFramedSource.
+   * @param source Source the packets were framed from, which is closed along with this source.
+   * @param frames Every packet of the source, framed at a stride of limit bytes.
+   */
+  public ServerFramedSource(ServerPacketSource source, ByteBuffer frames) {
+    super(source.length, source.getLimit(), source.isChecked());
+    this.source = source;
+    this.frames = frames;
+  }
+
+  /**
+   * Frames every packet of a source into a single buffer.
+   * @param source Source to frame packets from.
+   * @return Framed packets at a stride of limit bytes, or null if they do not fit in a buffer.
+   * @throws IOException If the source cannot be read.
+   */
+  public static ByteBuffer frame(ServerPacketSource source) throws IOException {
+    long bytes = (long) source.count() * source.getLimit();
+    if (bytes > Integer.MAX_VALUE) { return null; }
+    ByteBuffer frames = ByteBuffer.allocateDirect((int) bytes);
+    for (int index = 1; index <= source.count(); index++) {
+      source.read(index, frames.slice((index - 1) * source.getLimit(), source.getLimit()));
+    }
+    return frames.asReadOnlyBuffer();
+  }
+
+  /**
+   * Creates a view of the framed packets for a single stream.
+   * @return View of every framed packet.
+   */
+  public ByteBuffer buffer() {
+    return frames.duplicate();
+  }
+
+  public void recycle(ByteBuffer buffer) {}
+
+  /**
+   * Moves the view onto the packet with the given number.
+   * @param index Packet number, starting from 1.
+   * @param frame View created by this source.
+   * @return Length of the framed packet.
+   */
+  public int read(int index, ByteBuffer frame) {
+    int start = (index - 1) * getLimit();
+    frame.limit(start + HEADER_LENGTH + size(index) + (checked ? CHECKSUM_LENGTH : 0)).position(start);
+    return frame.remaining();
+  }
+
+  protected void copy(long offset, int length, ByteBuffer frame) throws IOException {
+    source.copy(offset, length, frame);
+  }
+
+  public byte[] digest() throws IOException {
+    return source.digest();
+  }
+
+  public void close() throws IOException {
+    source.close();
+  }
+}
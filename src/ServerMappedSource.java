@@ -0,0 +1,56 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Source that maps the file into memory, so framing a packet into a direct buffer is a single copy
+ * between two off-heap regions that never passes through the Java heap or a read call. A mapping is
+ * limited to 2GB, so larger files are mapped in several regions. Only a range of the file may be
+ * mapped, in which case the source frames packets from that range alone.
+ */
+class ServerMappedSource extends ServerPacketSource {
+  private static final int REGION = 1 << 30;
+  private ByteBuffer[] regions;
+
+  /**
+   * Creates a new ServerMappedSource. The mapping stays valid after the file is closed.
+   * @param file Open file to map.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   * @throws IOException If the file cannot be mapped.
+   */
+  public ServerMappedSource(FileChannel file, int limit, boolean checked) throws IOException {
+    this(file, 0, file.size(), limit, checked);
+  }
+
+  /**
+   * Creates a new ServerMappedSource of a range of the file. The mapping stays valid after the file
+   * is closed.
+   * @param file Open file to map.
+   * @param start Offset of the range in the file.
+   * @param length Length of the range, which must lie within the file.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   * @throws IOException If the file cannot be mapped.
+   */
+  public ServerMappedSource(FileChannel file, long start, long length, int limit, boolean checked) throws IOException {
+    super(length, limit, checked);
+    this.regions = new ByteBuffer[(int) ((length + REGION - 1) / REGION)];
+    for (int i = 0; i < regions.length; i++) {
+      long offset = (long) i * REGION;
+      regions[i] = file.map(FileChannel.MapMode.READ_ONLY, start + offset, Math.min(REGION, length - offset));
+    }
+  }
+
+  protected void copy(long offset, int length, ByteBuffer frame) {
+    while (length > 0) {
+      // A packet may straddle two regions, in which case it is copied in two parts.
+      ByteBuffer region = regions[(int) (offset / REGION)];
+      int start = (int) (offset % REGION);
+      int part = Math.min(length, region.capacity() - start);
+      frame.put(frame.position(), region, start, part).position(frame.position() + part);
+      offset += part;
+      length -= part;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+import java.net.*;
+import java.io.*;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Multicast fan-out for popular files. Clients that ask for it and request the same file with the same
+ * packet size within a short grouping delay share a single ServerMulticastStream to a multicast group,
+ * so the server sends the file once however many clients there are. Each group gets a port of its own,
+ * and every client still repairs its own losses over unicast through its ServerRequestController.
+ */
+class ServerMulticast {
+  // Time the first request of a group waits for others to join, in nanoseconds.
+  private static final long GROUP_DELAY = 100_000_000L;
+  private static final int PORTS = 64;
+  private DatagramChannel channel;
+  private ServerFileStore store;
+  private ServerPacer pacer;
+  private ServerScheduler scheduler;
+  private InetAddress group;
+  private int port;
+  // Ports of the groups that are currently streaming.
+  private BitSet busy = new BitSet(PORTS);
+  private HashMap<String, ServerMulticastStream> forming = new HashMap<>();
+
+  /**
+   * Creates a new ServerMulticast.
+   * @param group Multicast group address to stream to.
+   * @param port First port of the range of group ports.
+   * @param blocking If the channel sends in blocking mode, like the server's own channel.
+   * @param store Store to open requested files from.
+   * @param pacer Pacer to limit the send rate of every group with.
+   * @param scheduler Scheduler to start group streams on.
+   * @throws IOException If the multicast channel cannot be opened.
+   */
+  public ServerMulticast(InetAddress group, int port, boolean blocking, ServerFileStore store, ServerPacer pacer, ServerScheduler scheduler) throws IOException {
+    if (!group.isMulticastAddress()) {
+      throw new IOException(group.getHostAddress() + " is not a multicast address");
+    }
+    this.group = group;
+    this.port = port;
+    this.store = store;
+    this.pacer = pacer;
+    this.scheduler = scheduler;
+    this.channel = DatagramChannel.open(group instanceof Inet4Address ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+    // Clients on the server's own host receive the group's packets as well.
+    channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+    channel.configureBlocking(blocking);
+  }
+
+  /**
+   * Adds a client to the group that is forming for the file and packet size, or forms a new group.
+   * Only called by the thread that dispatches requests.
+   * @param filename Name of the requested file.
+   * @param limit Packet size limit the file is requested with.
+   * @param checked If the client asked for packets that end in a checksum.
+   * @return Group address and port the client should join, or null if every group port is in use.
+   * @throws IOException If the file cannot be opened.
+   */
+  public InetSocketAddress join(String filename, int limit, boolean checked) throws IOException {
+    String key = Paths.get(filename).toRealPath() + " " + limit + (checked ? " checked" : "");
+    forming.values().removeIf(started -> !started.forming());
+    ServerMulticastStream stream = forming.get(key);
+    if (stream != null && stream.join()) { return stream.target; }
+    forming.remove(key);
+    InetSocketAddress target = reserve();
+    if (target == null) { return null; }
+    ServerTokenBucket bucket = pacer.acquire(group);
+    ServerPacketSource source;
+    try {
+      source = store.open(filename, limit, checked);
+    } catch (IOException error) {
+      release(target);
+      throw error;
+    }
+    stream = new ServerMulticastStream(this, source, channel, target, System.nanoTime() + GROUP_DELAY, pacer, bucket);
+    stream.join();
+    forming.put(key, stream);
+    scheduler.schedule(stream);
+    return target;
+  }
+
+  /**
+   * Reserves the port of a new group.
+   * @return Group address and port, or null if every port is in use.
+   */
+  private synchronized InetSocketAddress reserve() {
+    int offset = busy.nextClearBit(0);
+    if (offset >= PORTS) { return null; }
+    busy.set(offset);
+    return new InetSocketAddress(group, port + offset);
+  }
+
+  /**
+   * Frees the port and token bucket of a group that is done streaming. Called from the stream.
+   * @param target Group address and port.
+   */
+  public synchronized void release(InetSocketAddress target) {
+    busy.clear(target.getPort() - port);
+    pacer.release(group);
+  }
+}
@@ -0,0 +1,80 @@
+import java.net.*;
+import java.io.*;
+import java.nio.channels.DatagramChannel;
+import java.util.BitSet;
+
+/**
+ * Streams every packet of a file once to a multicast group on behalf of every client that asked for
+ * the same file with the same packet size at about the same time. The stream holds off for a moment
+ * after it is created so that the clients have time to join the group, and frees its port and file
+ * once it is done.
+ */
+class ServerMulticastStream extends ServerRequestStream {
+  private ServerMulticast multicast;
+  private long start;
+  private int members;
+
+  /**
+   * Creates a new ServerMulticastStream.
+   * @param multicast Multicast fan-out the stream belongs to.
+   * @param source Source to frame packets from, which the stream closes once done.
+   * @param channel Channel to send multicast packets over.
+   * @param group Group address and port to send packets to.
+   * @param start Time in nanoseconds to start sending at.
+   * @param pacer Pacer to limit the send rate with.
+   * @param bucket Token bucket of the group.
+   */
+  public ServerMulticastStream(ServerMulticast multicast, ServerPacketSource source, DatagramChannel channel, InetSocketAddress group, long start, ServerPacer pacer, ServerTokenBucket bucket) {
+    super(source, channel, group, all(source.count()), pacer, bucket);
+    this.multicast = multicast;
+    this.start = start;
+  }
+
+  /**
+   * Returns the set of every packet number of a file.
+   * @param count Total number of packets.
+   * @return Set of packet numbers.
+   */
+  private static BitSet all(int count) {
+    BitSet packets = new BitSet(count + 1);
+    packets.set(1, count + 1);
+    return packets;
+  }
+
+  /**
+   * Returns if clients may still join the group.
+   * @return True until the stream starts.
+   */
+  public boolean forming() {
+    return System.nanoTime() < start;
+  }
+
+  /**
+   * Adds a client to the group if the stream has not started yet.
+   * @return False if the stream already started, so the client has to be served by a new group.
+   */
+  public boolean join() {
+    lock.lock();
+    try {
+      if (!forming()) { return false; }
+      members++;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  protected long pump(long now) throws IOException {
+    if (now < start) { return start; }
+    if (members > 0) {
+      System.out.println("[MCST] " + ID() + " " + members + " clients");
+      members = 0;
+    }
+    long deadline = super.pump(now);
+    if (deadline == DONE) {
+      source.close();
+      multicast.release(target);
+    }
+    return deadline;
+  }
+}
@@ -0,0 +1,78 @@
+import java.net.*;
+import java.util.HashMap;
+
+/**
+ * Paces every stream on the server with a global token bucket plus one token bucket per client address,
+ * so a single transfer cannot saturate the network interface or starve the control socket. The limits
+ * can be changed while the server is running.
+ */
+class ServerPacer {
+  // Waits shorter than this are spun out, since parking cannot wake up that precisely.
+  public static final long SPIN = 100_000;
+  private ServerTokenBucket global;
+  private HashMap<InetAddress, ServerTokenBucket> clients = new HashMap<>();
+  private long clientRate;
+  private long burst;
+
+  /**
+   * Creates a new ServerPacer.
+   * @param rate Global rate in bytes per second, or 0 for no limit.
+   * @param clientRate Rate per client address in bytes per second, or 0 for no limit.
+   * @param burst Maximum number of bytes either bucket lets through back to back.
+   */
+  public ServerPacer(long rate, long clientRate, long burst) {
+    this.global = new ServerTokenBucket(rate, burst);
+    this.clientRate = clientRate;
+    this.burst = burst;
+  }
+
+  /**
+   * Changes the global rate.
+   * @param rate Rate in bytes per second, or 0 for no limit.
+   */
+  public synchronized void setRate(long rate) {
+    global.limit(rate, burst);
+    System.out.println("[RATE] global " + rate + " bytes/s");
+  }
+
+  /**
+   * Changes the rate of every client, including clients with a transfer in progress.
+   * @param rate Rate in bytes per second, or 0 for no limit.
+   */
+  public synchronized void setClientRate(long rate) {
+    clientRate = rate;
+    for (ServerTokenBucket bucket : clients.values()) { bucket.limit(rate, burst); }
+    System.out.println("[RATE] client " + rate + " bytes/s");
+  }
+
+  /**
+   * Returns the token bucket shared by every stream to the given client address. Each call must be
+   * matched with a call to release.
+   * @param address Client address.
+   * @return Token bucket of the client.
+   */
+  public synchronized ServerTokenBucket acquire(InetAddress address) {
+    ServerTokenBucket bucket = clients.computeIfAbsent(address, key -> new ServerTokenBucket(clientRate, burst));
+    bucket.users++;
+    return bucket;
+  }
+
+  /**
+   * Releases the token bucket of the given client address, dropping it once no stream uses it.
+   * @param address Client address.
+   */
+  public synchronized void release(InetAddress address) {
+    ServerTokenBucket bucket = clients.get(address);
+    if (bucket != null && --bucket.users == 0) { clients.remove(address); }
+  }
+
+  /**
+   * Takes the given amount of bytes out of both the global and the client bucket.
+   * @param bucket Token bucket of the client.
+   * @param bytes Number of bytes about to be sent.
+   * @return Nanoseconds to wait before sending them.
+   */
+  public long reserve(ServerTokenBucket bucket, int bytes) {
+    return Math.max(global.reserve(bytes), bucket.reserve(bytes));
+  }
+}
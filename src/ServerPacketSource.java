@@ -0,0 +1,213 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+/**
+ * Frames numbered packets out of a file so that any single packet can be framed on demand. Sources are
+ * only read with positional reads, so several streams can frame packets from the same source at once.
+ * The first four bytes indicate the packet order and the fifth byte indicates if that packet is the
+ * last packet in the sequence. Every packet carries limit - HEADER_LENGTH bytes of the file except the
+ * last, which carries whatever is left over (possibly nothing). Packets of a checked source end in the
+ * CRC32C of everything before it, which takes CHECKSUM_LENGTH bytes away from the file in each packet.
+ * Packets of a tagged source carry the session of their transfer after the fifth byte, see
+ * ServerSessionSource, which takes SESSION_LENGTH bytes away from the file in each packet as well.
+ */
+abstract class ServerPacketSource {
+  public static final int HEADER_LENGTH = 5;
+  public static final int SESSION_LENGTH = 4;
+  public static final int CHECKSUM_LENGTH = 4;
+  // Bytes of the file read at a time when the whole file is read through a source.
+  protected static final int CHUNK = 1 << 16;
+  // Checksums are computed on every stream's thread, so each thread keeps one to reuse.
+  private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+  protected long length;
+  protected int payload;
+  protected boolean checked;
+  private int count;
+  private int limit;
+  private int header;
+
+  /**
+   * Creates a new ServerPacketSource.
+   * @param length Length of the file in bytes.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   */
+  protected ServerPacketSource(long length, int limit, boolean checked) {
+    this(length, limit, checked, HEADER_LENGTH);
+  }
+
+  /**
+   * Creates a new ServerPacketSource whose packets start with a header of the given length.
+   * @param length Length of the file in bytes.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   * @param header Length of the header of every packet.
+   */
+  protected ServerPacketSource(long length, int limit, boolean checked, int header) {
+    this.length = length;
+    this.limit = limit;
+    this.checked = checked;
+    this.header = header;
+    this.payload = limit - header - (checked ? CHECKSUM_LENGTH : 0);
+    // The last packet is always the one that comes up short, so a file that divides evenly into
+    // packets ends with an empty packet that only carries the last flag.
+    this.count = (int) (length / payload) + 1;
+  }
+
+  /**
+   * Returns the total number of packets in the file.
+   * @return Packet count.
+   */
+  public int count() {
+    return count;
+  }
+
+  /**
+   * Returns the packet size limit this source frames packets with.
+   * @return Packet size limit.
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Returns the length of the header every packet of this source starts with.
+   * @return Header length.
+   */
+  public int header() {
+    return header;
+  }
+
+  /**
+   * Returns if every packet of this source ends in a checksum.
+   * @return If packets are checked.
+   */
+  public boolean isChecked() {
+    return checked;
+  }
+
+  /**
+   * Returns what tells apart the ways packets of a file can be framed, which is the packet size limit
+   * negated for checked packets.
+   * @return Framing key.
+   */
+  public int framing() {
+    return checked ? -limit : limit;
+  }
+
+  /**
+   * Returns the number of bytes of the file the packet with the given number carries.
+   * @param index Packet number, starting from 1.
+   * @return Payload length.
+   */
+  protected int size(int index) {
+    return (int) Math.min(payload, length - (long) (index - 1) * payload);
+  }
+
+  /**
+   * Creates a buffer for a single stream to frame packets into with read.
+   * @return Buffer of at least limit bytes.
+   */
+  public ByteBuffer buffer() {
+    // A direct buffer can be sent by the channel without being copied into one first.
+    return ServerBufferPool.acquire(limit);
+  }
+
+  /**
+   * Gives back a buffer created by buffer once the stream is done with it.
+   * @param buffer Buffer to give back.
+   */
+  public void recycle(ByteBuffer buffer) {
+    ServerBufferPool.release(buffer);
+  }
+
+  /**
+   * Frames the packet with the given number into the buffer, which is left flipped for sending.
+   * @param index Packet number, starting from 1.
+   * @param frame Buffer created by this source to frame the packet into.
+   * @return Length of the framed packet.
+   * @throws IOException If the file cannot be read.
+   */
+  public int read(int index, ByteBuffer frame) throws IOException {
+    // Add the index identifier, then flip the bits of the fifth byte to indicate the last packet.
+    header(frame.clear(), index, index == count ? (byte) 0b1111111 : 0);
+    copy((long) (index - 1) * payload, size(index), frame);
+    if (checked) { checksum(frame); }
+    frame.flip();
+    return frame.remaining();
+  }
+
+  /**
+   * Frames the header of a packet of this source into the buffer at its position, which is also how
+   * parity and control packets of a transfer start.
+   * @param frame Buffer a packet is being framed into.
+   * @param index Packet number.
+   * @param flag Fifth byte, which tells apart the last packet and parity packets.
+   * @return The given buffer.
+   */
+  public ByteBuffer header(ByteBuffer frame, int index, byte flag) {
+    return frame.putInt(index).put(flag);
+  }
+
+  /**
+   * Appends the CRC32C of everything framed so far, from the start of the buffer up to its position.
+   * The checksum is computed by a single instruction per few bytes on processors that have one.
+   * @param frame Buffer a packet is being framed into.
+   */
+  public static void checksum(ByteBuffer frame) {
+    CRC32C crc = CRC.get();
+    crc.reset();
+    int end = frame.position();
+    crc.update(frame.flip());
+    frame.limit(frame.capacity()).position(end);
+    frame.putInt((int) crc.getValue());
+  }
+
+  /**
+   * Returns the SHA-256 digest of the file, which a checked client compares to the file it assembled.
+   * Sources that share a file with other transfers keep the digest so it is only computed once.
+   * @return Digest of the file.
+   * @throws IOException If the file cannot be read.
+   */
+  public byte[] digest() throws IOException {
+    return sha256();
+  }
+
+  /**
+   * Computes the SHA-256 digest of the file by reading it from start to end.
+   * @return Digest of the file.
+   * @throws IOException If the file cannot be read.
+   */
+  protected byte[] sha256() throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException error) {
+      throw new IllegalStateException(error);
+    }
+    ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK);
+    for (long offset = 0; offset < length; offset += CHUNK) {
+      copy(offset, (int) Math.min(CHUNK, length - offset), chunk.clear());
+      digest.update(chunk.flip());
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Copies a range of the file into the buffer at its position.
+   * @param offset Offset of the range in the file.
+   * @param length Length of the range.
+   * @param frame Buffer to copy the range into.
+   * @throws IOException If the file cannot be read.
+   */
+  protected abstract void copy(long offset, int length, ByteBuffer frame) throws IOException;
+
+  /**
+   * Releases the file.
+   * @throws IOException If the file cannot be closed.
+   */
+  public void close() throws IOException {}
+}
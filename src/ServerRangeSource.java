@@ -0,0 +1,32 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Source that frames packets from a range of the file of another source, numbered from 1 at the start
+ * of the range, so that a client can fetch part of a file or pick up where a transfer stopped. Packets
+ * are framed from the other source's file on demand, never from packets it framed up front.
+ */
+class ServerRangeSource extends ServerPacketSource {
+  private ServerPacketSource source;
+  private long start;
+
+  /**
+   * Creates a new ServerRangeSource.
+   * @param source Source of the whole file, which is closed along with this source.
+   * @param start Offset of the range in the file.
+   * @param length Length of the range, which must lie within the file.
+   */
+  public ServerRangeSource(ServerPacketSource source, long start, long length) {
+    super(length, source.getLimit(), source.isChecked());
+    this.source = source;
+    this.start = start;
+  }
+
+  protected void copy(long offset, int length, ByteBuffer frame) throws IOException {
+    source.copy(start + offset, length, frame);
+  }
+
+  public void close() throws IOException {
+    source.close();
+  }
+}
@@ -0,0 +1,45 @@
+import java.io.*;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Reactor server mode that drives every stream from a small fixed number of event loops, so the number
+ * of threads no longer grows with the number of concurrent transfers.
+ */
+class ServerReactor implements ServerScheduler {
+  private DatagramChannel channel;
+  private ServerEventLoop[] loops;
+  private int next;
+
+  /**
+   * Creates a new ServerReactor.
+   * @param channel Channel bound to the server's port, which is switched to non-blocking mode.
+   * @param threads Number of event loops.
+   * @throws IOException If the channel cannot be configured.
+   */
+  public ServerReactor(DatagramChannel channel, int threads) throws IOException {
+    this.channel = channel;
+    this.loops = new ServerEventLoop[threads];
+    channel.configureBlocking(false);
+  }
+
+  /**
+   * Starts the event loops, where the first loop also receives requests.
+   * @param dispatcher Dispatcher to handle every request with.
+   * @throws IOException If a selector cannot be opened.
+   */
+  public void start(ServerDispatcher dispatcher) throws IOException {
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new ServerEventLoop(channel, i == 0 ? dispatcher : null);
+      loops[i].start();
+    }
+    System.out.println("Server running on localhost:13231 with " + loops.length + " event loops");
+  }
+
+  /**
+   * Attaches the stream to the next event loop in turn. Only called by the receiving event loop.
+   * @param stream Stream to drive.
+   */
+  public void schedule(ServerStream stream) {
+    stream.attach(loops[next++ % loops.length]);
+  }
+}
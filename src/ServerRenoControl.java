@@ -0,0 +1,24 @@
+/**
+ * Loss based congestion control with additive increase and multiplicative decrease, like TCP Reno.
+ * The window grows exponentially during slow start and by one packet per round trip afterwards, and
+ * halves on every loss.
+ */
+class ServerRenoControl implements ServerCongestionControl {
+  private static final double INITIAL_WINDOW = 4;
+  private double window = INITIAL_WINDOW;
+  private double threshold = Double.MAX_VALUE;
+
+  public int window() {
+    return (int) window;
+  }
+
+  public void acknowledged(int packets, long rtt) {
+    window += window < threshold ? packets : packets / window;
+  }
+
+  public void lost(boolean timeout) {
+    threshold = Math.max(2, window / 2);
+    // A timeout means the acknowledgement clock has stopped, so restart from a single packet.
+    window = timeout ? 1 : threshold;
+  }
+}
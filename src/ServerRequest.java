@@ -0,0 +1,284 @@
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+/**
+ * Representation of any of the possible server requests, read in place from the datagram it arrived
+ * in, see ControlMessage for the format. Reading a request allocates nothing, so a single instance is
+ * reused for every datagram and only what a request needs beyond its handling is copied out of it.
+ */
+class ServerRequest {
+  private ByteBuffer data;
+  private InetSocketAddress sender;
+  private Action action;
+  private int session;
+  // Offset of the body of the message in the buffer, and of its packet ranges.
+  private int body;
+  private int ranges;
+
+  /**
+   * Possible actions of the server request.
+   */
+  public enum Action {
+    Abort,
+    Acknowledge,
+    Failure,
+    Success,
+    Transmit,
+  }
+
+  /**
+   * Reads the request in a received datagram, which stays in the buffer until the request is handled.
+   * @param data Buffer holding the datagram's contents between its position and limit.
+   * @param sender Address of the remote node that sent the datagram.
+   * @return This request.
+   * @throws Exception If the datagram is not a control message of a known version and type.
+   */
+  public ServerRequest read(ByteBuffer data, InetSocketAddress sender) throws Exception {
+    this.data = data;
+    this.sender = sender;
+    int start = data.position();
+    if (data.remaining() < ControlMessage.HEADER_LENGTH || data.get(start) != ControlMessage.VERSION) {
+      throw new Exception("Control message from " + sender + " is not of version " + ControlMessage.VERSION);
+    }
+    this.session = data.getInt(start + 2);
+    this.body = start + ControlMessage.HEADER_LENGTH;
+    switch (data.get(start + 1)) {
+      case ControlMessage.REQUEST: this.action = Action.Transmit;
+        this.ranges = body + ControlMessage.REQUEST_LENGTH + 2 + length(body + ControlMessage.REQUEST_LENGTH);
+        break;
+      case ControlMessage.FAILURE: this.action = Action.Failure;
+        this.ranges = body;
+        break;
+      case ControlMessage.ACKNOWLEDGE: this.action = Action.Acknowledge;
+        this.ranges = body + 4;
+        break;
+      case ControlMessage.SUCCESS: this.action = Action.Success;
+        return this;
+      case ControlMessage.ABORT: this.action = Action.Abort;
+        return this;
+      default: throw new Exception("Unknown control message type " + data.get(start + 1));
+    }
+    if (ranges + 2 > data.limit() || ranges + 2 + count() * ControlMessage.RANGE_LENGTH > data.limit()) {
+      throw new Exception("Control message from " + sender + " is cut short");
+    }
+    if (action == Action.Transmit) { length(ranges + 2 + count() * ControlMessage.RANGE_LENGTH); }
+    return this;
+  }
+
+  /**
+   * Returns the length of the string at the given offset, checking that it fits in the message.
+   * @param offset Offset of the length prefix of the string.
+   * @return Length of the string.
+   * @throws Exception If the string runs past the end of the message.
+   */
+  private int length(int offset) throws Exception {
+    if (offset + 2 > data.limit() || offset + 2 + (data.getShort(offset) & 0xffff) > data.limit()) {
+      throw new Exception("Control message from " + sender + " is cut short");
+    }
+    return data.getShort(offset) & 0xffff;
+  }
+
+  /**
+   * Returns the string at the given offset.
+   * @param offset Offset of the length prefix of the string.
+   * @return String, or null if it is empty.
+   */
+  private String string(int offset) {
+    int length = data.getShort(offset) & 0xffff;
+    return length > 0 ? new String(data.array(), data.arrayOffset() + offset + 2, length, StandardCharsets.UTF_8) : null;
+  }
+
+  /**
+   * Returns the parsed Action type.
+   * @return The parsed action type.
+   */
+  public Action getAction() {
+    return action;
+  }
+
+  /**
+   * Returns a string that uniquely identifies the transfer of this server request, which is the address
+   * and port of the client followed by the session, e.g. "127.0.0.1:50000/1f2e3d4c", since a client
+   * may run several transfers over one socket.
+   * @return Unique identifier.
+   */
+  public String ID() {
+    return sender.getAddress().getHostAddress() + ":" + sender.getPort() + "/" + Integer.toHexString(session);
+  }
+
+  /**
+   * Returns the session the message belongs to.
+   * @return Session.
+   */
+  public int getSession() {
+    return session;
+  }
+
+  /**
+   * Returns the packet size of a request.
+   * @return Packet size.
+   */
+  public int getLimit() {
+    return data.getShort(body) & 0xffff;
+  }
+
+  /**
+   * Returns if a request has the given flag, such as ControlMessage.VERIFY.
+   * @param flag Flag.
+   * @return If the flag is set.
+   */
+  public boolean hasFlag(int flag) {
+    return (data.get(body + 2) & flag) != 0;
+  }
+
+  /**
+   * Returns the congestion control of a request.
+   * @return Name of the congestion control, or null for none.
+   * @throws Exception If the congestion control is unknown.
+   */
+  public String getControl() throws Exception {
+    int control = data.get(body + 3) & 0xff;
+    if (control >= ControlMessage.CONTROLS.length) {
+      throw new Exception("Unknown congestion control " + control);
+    }
+    return ControlMessage.CONTROLS[control];
+  }
+
+  /**
+   * Returns the window of a request.
+   * @return Maximum number of packets in flight, or 0 for none.
+   */
+  public int getWindow() {
+    return data.getInt(body + 4);
+  }
+
+  /**
+   * Returns the number of streams a request splits the file into.
+   * @return Number of streams.
+   */
+  public int getStreams() {
+    return data.get(body + 8) & 0xff;
+  }
+
+  /**
+   * Returns the data packets of a block of error correction of a request.
+   * @return Data packets, or 0 for no error correction.
+   */
+  public int getData() {
+    return data.get(body + 9) & 0xff;
+  }
+
+  /**
+   * Returns the parity packets of a block of error correction of a request.
+   * @return Parity packets.
+   */
+  public int getParity() {
+    return data.get(body + 10) & 0xff;
+  }
+
+  /**
+   * Returns the offset of the range of the file a request asks for.
+   * @return Offset.
+   */
+  public long getOffset() {
+    return data.getLong(body + 11);
+  }
+
+  /**
+   * Returns the length of the range of the file a request asks for.
+   * @return Length, or -1 for the rest of the file.
+   */
+  public long getLength() {
+    return data.getLong(body + 19);
+  }
+
+  /**
+   * Returns the path of the dictionary of a request.
+   * @return Path, or null for none.
+   */
+  public String getDictionary() {
+    return string(body + ControlMessage.REQUEST_LENGTH);
+  }
+
+  /**
+   * Returns the requested filename.
+   * @return Filename.
+   */
+  public String getFilename() {
+    return string(ranges + 2 + count() * ControlMessage.RANGE_LENGTH);
+  }
+
+  /**
+   * Returns the cumulative packet number of an acknowledgement.
+   * @return Every packet up to and including this number has been received.
+   */
+  public int getCumulative() {
+    return data.getInt(body);
+  }
+
+  /**
+   * Returns the number of packet ranges the message carries.
+   * @return Number of ranges.
+   */
+  public int count() {
+    return data.getShort(ranges) & 0xffff;
+  }
+
+  /**
+   * Adds every packet number in the packet ranges of the message to the given set.
+   * @param count Total number of packets, which ends open ranges and cuts every range short.
+   * @param packets Set to add the packet numbers to.
+   * @return The given set.
+   */
+  public BitSet ranges(int count, BitSet packets) {
+    for (int i = 0, offset = ranges + 2; i < count(); i++, offset += ControlMessage.RANGE_LENGTH) {
+      int from = Math.max(data.getInt(offset), 1);
+      int to = data.getInt(offset + 4);
+      to = to == ControlMessage.OPEN ? count : Math.min(to, count);
+      if (from <= to) { packets.set(from, to + 1); }
+    }
+    return packets;
+  }
+
+  /**
+   * Returns the packet ranges of the message, e.g. for a request to keep them beyond its handling.
+   * @return First and last packet number of every range, one after the other.
+   */
+  public int[] ranges() {
+    int[] bounds = new int[count() * 2];
+    for (int i = 0; i < bounds.length; i++) { bounds[i] = data.getInt(ranges + 2 + i * 4); }
+    return bounds;
+  }
+
+  /**
+   * Describes the message for the log, e.g. "fail 2-4,9,12-".
+   * @return Description.
+   */
+  public String describe() {
+    switch (action) {
+      case Transmit: return "request " + getLimit() + " " + getFilename();
+      case Failure: return count() > 0 ? "fail " + ControlMessage.format(ranges()) : "fail";
+      case Acknowledge: return "ack " + getCumulative() + (count() > 0 ? " " + ControlMessage.format(ranges()) : "");
+      case Abort: return "abort";
+      default: return "file OK";
+    }
+  }
+
+  /**
+   * Returns the destination port of the remote node that made the request.
+   * @return Remote ports node.
+   */
+  public int getPort() {
+    return sender.getPort();
+  }
+
+  /**
+   * Returns the destination IP of the remote node that made the request.
+   * @return Remote node's IP address.
+   */
+  public InetAddress getAddress() {
+    return sender.getAddress();
+  }
+}
@@ -0,0 +1,500 @@
+import java.net.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.BitSet;
+import java.util.HexFormat;
+
+/**
+ * Controller for a currently processing request. This facilitates the ability for UDP requests to be
+ * retransmitted, either completely or only for the packets the client reports as missing.
+ */
+class ServerRequestController {
+  private static final int MAX_RETRIES = 3;
+  private static final int MAX_STREAMS = 64;
+  private DatagramChannel channel;
+  private ServerScheduler scheduler;
+  private ServerTokenBucket bucket;
+  private ServerPacer pacer;
+  private ServerRequestStream[] threads;
+  private ServerWindowStream[] windows;
+  // Channel of every worker, which is the server's own channel unless the file is split up.
+  private DatagramChannel[] channels;
+  // First packet number of every worker's range, followed by one past the last packet.
+  private int[] bounds;
+  private ServerPacketSource source;
+  private ServerFileStore store;
+  private ServerMulticast multicast;
+  // Error correction code of plain streams, or null if the client did not ask for one.
+  private ReedSolomon code;
+  // Whether the file is deflated before it is framed, and the preset dictionary of the deflater.
+  private boolean deflated;
+  private byte[] dictionary;
+  // Whether a worker of the store is still preparing the source, which the streams start once it is done.
+  private volatile boolean preparing;
+  // Whether packets end in a checksum, and the digest of the file the client checks it against once
+  // it is computed. The source stays open while it is hashed, even if the transfer is shut down.
+  private boolean checked;
+  private String digest;
+  private boolean digesting;
+  private boolean closed;
+  // Range of the file to send, where a length of -1 runs until the end of the file.
+  private boolean ranged;
+  private long offset;
+  private long length;
+  // Whether the signature of the file is sent instead, and the ranges of packets to send if not every one.
+  private boolean signed;
+  private int[] packets;
+  // Streams the file is split into, packets in flight and congestion control, or 0 and null for none.
+  private int streams;
+  private int window;
+  private String control;
+  private boolean shared;
+  // Session of the transfer, and whether every packet carries it for a client that shares its socket.
+  private int session;
+  private boolean tagged;
+  // Time the client last sent a control message for the transfer, and the timer that checks it.
+  private volatile long touched = System.nanoTime();
+  private ServerTimingWheel.Timer timer;
+  // Packets received beyond the cumulative one, which every acknowledgement fills in again.
+  private BitSet selective = new BitSet();
+  private InetSocketAddress target;
+  private InetAddress address;
+  private String filename;
+  private int retries;
+  private int limit;
+  private int port;
+
+  /**
+   * Creates a new ServerRequestController from a ServerRequest and a DatagramChannel
+   * @param request Request to perform a transmit action on.
+   * @param channel Channel to stream UDP packets to.
+   * @param pacer Pacer to limit the send rate with.
+   * @param scheduler Scheduler to start streams on.
+   * @param store Store to open the requested file from.
+   * @param multicast Multicast fan-out, or null if the server only uses unicast.
+   * @throws Exception If the ServerRequest command is incorrect.
+   */
+  public ServerRequestController(ServerRequest request, DatagramChannel channel, ServerPacer pacer, ServerScheduler scheduler, ServerFileStore store, ServerMulticast multicast) throws Exception {
+    this.pacer = pacer;
+    this.scheduler = scheduler;
+    this.store = store;
+    this.multicast = multicast;
+    this.address = request.getAddress();
+    this.port = request.getPort();
+    this.target = new InetSocketAddress(address, port);
+    this.session = request.getSession();
+    this.channel = channel;
+    this.limit = request.getLimit();
+    if (limit <= ServerPacketSource.HEADER_LENGTH) {
+      throw new Exception("Packet size must be larger than " + ServerPacketSource.HEADER_LENGTH);
+    }
+    this.filename = request.getFilename();
+    if (filename == null) {
+      throw new Exception("Server request requires a filename");
+    }
+    this.streams = request.getStreams();
+    if (streams < 1 || streams > MAX_STREAMS) {
+      throw new Exception("Streams must be between 1 and " + MAX_STREAMS);
+    }
+    if (request.getData() > 0) {
+      this.code = new ReedSolomon(request.getData(), request.getParity());
+    }
+    this.deflated = request.hasFlag(ControlMessage.DEFLATE);
+    String dictionary = request.getDictionary();
+    if (dictionary != null) {
+      if (!deflated) {
+        throw new Exception("A dictionary only applies to a compressed file");
+      }
+      this.dictionary = store.dictionary(dictionary);
+    }
+    this.checked = request.hasFlag(ControlMessage.VERIFY);
+    this.offset = request.getOffset();
+    this.length = request.getLength();
+    this.ranged = offset != 0 || length != -1;
+    if (offset < 0) {
+      throw new Exception("Range offset must not be negative");
+    }
+    if (ranged && deflated) {
+      throw new Exception("A range of a file is sent as it is, not compressed");
+    }
+    this.signed = request.hasFlag(ControlMessage.SIGN);
+    this.packets = request.count() > 0 ? request.ranges() : null;
+    if (signed && (ranged || deflated)) {
+      throw new Exception("A signature covers the whole file as it is");
+    }
+    this.control = request.getControl();
+    // Every stream keeps send state for a whole window, so the window is bounded before it is allocated.
+    if (request.getWindow() < 0 || request.getWindow() > ControlMessage.MAX_WINDOW) {
+      throw new Exception("Window must be between 0 and " + ControlMessage.MAX_WINDOW);
+    }
+    // Congestion control needs acknowledgements, so it implies a windowed stream, as large as allowed.
+    this.window = request.getWindow() > 0 || control == null ? request.getWindow() : ControlMessage.MAX_WINDOW;
+    if (packets != null && window > 0) {
+      throw new Exception("Selected packets are only sent by plain streams");
+    }
+    this.shared = request.hasFlag(ControlMessage.MULTICAST);
+    if (limit <= ServerPacketSource.HEADER_LENGTH + (checked ? ServerPacketSource.CHECKSUM_LENGTH : 0)) {
+      throw new Exception("Packet size must be larger than " + (ServerPacketSource.HEADER_LENGTH + ServerPacketSource.CHECKSUM_LENGTH) + " with a checksum");
+    }
+    this.tagged = request.hasFlag(ControlMessage.TAGGED);
+    if (tagged && limit <= ServerPacketSource.HEADER_LENGTH + ServerPacketSource.SESSION_LENGTH + (checked ? ServerPacketSource.CHECKSUM_LENGTH : 0)) {
+      throw new Exception("Packet size must be larger than " + (ServerPacketSource.HEADER_LENGTH + ServerPacketSource.SESSION_LENGTH) + " with a session");
+    }
+  }
+
+  /**
+   * Opens the requested file and starts the internal streams. A window streams with at most that
+   * many unacknowledged packets in flight and a congestion control limits it further, otherwise
+   * every packet is sent back to back. More than one stream splits the file into that many ranges of
+   * packets, each sent by a worker of its own from a port of its own. The MULTICAST flag lets a
+   * plain request share a multicast stream with other clients, in which case the client is only told
+   * which group to join and this controller just handles its repairs. Error correction such as 8
+   * data and 2 parity packets follows every 8 packets of a plain stream with 2 parity packets, in
+   * which case the ranges of the workers are whole blocks. The DEFLATE flag frames the deflated
+   * version of the file instead, with the contents of the dictionary file if there is one as the
+   * preset dictionary, and keeps the client out of multicast groups, which send the file as it is.
+   * Deflating reads the whole file, so a worker of the store deflates it, see
+   * ServerFileStore.deflate, and the streams start once it is done. The VERIFY flag ends every
+   * packet in a checksum and tells the client the digest of the file, of its deflated version if it
+   * is deflated, in a control packet once it is computed, see ServerFileStore.digest. A range sends
+   * only that part of the file, numbered from its start, which also keeps the client out of
+   * multicast groups. The SIGN flag sends the signature of the file instead, see
+   * ServerSignatureSource, which a worker of the store computes like a deflated file, see
+   * ServerFileStore.sign, and ranges of packets such as 2-4 and 9 only send those packets of a plain
+   * stream, which is how a client that matched the signature asks for the rest of the file. The
+   * TAGGED flag frames the session of the request into every packet, see ServerSessionSource, so
+   * that a client can run several transfers over one socket, which keeps it out of multicast groups
+   * as well since their packets carry no session.
+   * @throws Exception IF anything bad happens, in which case the transfer is shut down first.
+   */
+  public void start() throws Exception {
+    try {
+      if (deflated || signed) {
+        preparing = true;
+        if (deflated) {
+          store.deflate(filename, limit, checked, dictionary, this::prepared);
+        } else {
+          store.sign(filename, limit, checked, this::prepared);
+        }
+        return;
+      }
+      begin(ranged ? store.range(filename, limit, checked, offset, length) : store.open(filename, limit, checked));
+    } catch (Exception error) {
+      // A transfer that fails to start is never handed to the dispatcher, so it lets go of what it holds.
+      try {
+        shutdown();
+      } catch (IOException suppressed) {
+        error.addSuppressed(suppressed);
+      }
+      throw error;
+    }
+  }
+
+  /**
+   * Starts the streams of a source that a worker of the store prepared, or closes it if the transfer
+   * was shut down in the meantime. A transfer whose source could not be prepared is shut down, so that
+   * the next failure from its client removes it.
+   * @param prepared Prepared packet source, or null if it could not be prepared.
+   * @param error Error that kept the source from being prepared, or null.
+   */
+  private synchronized void prepared(ServerPacketSource prepared, Exception error) {
+    preparing = false;
+    try {
+      if (error != null) {
+        error.printStackTrace();
+        shutdown();
+      } else if (closed) {
+        prepared.close();
+      } else {
+        System.out.println((deflated ? "[DEFL] " : "[SIGN] ") + ID() + " " + prepared.length + " bytes");
+        begin(prepared);
+      }
+    } catch (Exception failure) {
+      failure.printStackTrace();
+      try {
+        shutdown();
+      } catch (IOException ignored) {
+        // The transfer is already given up on.
+      }
+    }
+  }
+
+  /**
+   * Starts the streams of the opened source, see start. The source is closed by shutdown if the
+   * streams cannot be started.
+   * @param opened Packet source of the requested file.
+   * @throws Exception If anything bad happens.
+   */
+  private synchronized void begin(ServerPacketSource opened) throws Exception {
+    source = tagged ? new ServerSessionSource(opened, session) : opened;
+    if (checked) {
+      // Set before the digest is asked for, since it may arrive before the call returns, and cleared
+      // again if it cannot be asked for, so that shutting down closes the source itself.
+      digesting = true;
+      try {
+        store.digest(source, deflated || signed ? null : filename, offset, length, this::digested);
+      } catch (IOException | RuntimeException error) {
+        digesting = false;
+        throw error;
+      }
+    }
+    bucket = pacer.acquire(address);
+    int block = code != null ? code.getData() : 1;
+    int blocks = (source.count() + block - 1) / block;
+    int workers = Math.min(streams, blocks);
+    channels = new DatagramChannel[workers];
+    bounds = new int[workers + 1];
+    for (int i = 0; i < workers; i++) {
+      channels[i] = workers == 1 ? channel : worker();
+      bounds[i] = 1 + (int) ((long) i * blocks / workers) * block;
+    }
+    bounds[workers] = source.count() + 1;
+    InetSocketAddress group = multicast != null && shared && !tagged && !deflated && !ranged && !signed && packets == null && window == 0 && workers == 1 ? multicast.join(filename, limit, checked) : null;
+    if (group != null) {
+      control("mcast " + group.getAddress().getHostAddress() + ":" + group.getPort());
+    } else if (window > 0) {
+      windows = new ServerWindowStream[workers];
+      for (int i = 0; i < workers; i++) {
+        ServerCongestionControl congestion = control != null ? ServerCongestionControl.create(control) : null;
+        windows[i] = new ServerWindowStream(source, channels[i], target, bounds[i], bounds[i + 1] - 1, window, congestion, pacer, bucket);
+        scheduler.schedule(windows[i]);
+      }
+    } else {
+      stream(packets != null ? packets(packets, source.count()) : null);
+    }
+  }
+
+  /**
+   * Sends a control packet to the client, which carries packet number 0 followed by a text message and
+   * ends in a checksum like every other packet of the transfer.
+   * @param message Message to send.
+   * @throws IOException If the packet cannot be sent.
+   */
+  private void control(String message) throws IOException {
+    byte[] text = message.getBytes();
+    ByteBuffer packet = ByteBuffer.allocate(source.header() + text.length + ServerPacketSource.CHECKSUM_LENGTH);
+    source.header(packet, 0, (byte) 0).put(text);
+    if (checked) { ServerPacketSource.checksum(packet); }
+    packet.flip();
+    channel.send(packet, target);
+    System.out.println("[CTRL] " + ID() + " " + message);
+  }
+
+  /**
+   * Sends the digest of the file to the client once it is computed, which the client takes at any
+   * point of the transfer, or closes the file if the transfer was shut down while it was hashed.
+   * @param value Digest, or null if the file could not be read.
+   */
+  private synchronized void digested(byte[] value) {
+    digesting = false;
+    try {
+      if (closed) {
+        source.close();
+      } else if (value != null) {
+        digest = HexFormat.of().formatHex(value);
+        control("digest " + digest);
+      }
+    } catch (IOException error) {
+      error.printStackTrace();
+    }
+  }
+
+  /**
+   * Opens a channel on an ephemeral port for a worker, in the same blocking mode as the server's own.
+   * @return Worker channel.
+   * @throws IOException If the channel cannot be opened.
+   */
+  private DatagramChannel worker() throws IOException {
+    InetAddress local = ((InetSocketAddress) channel.getLocalAddress()).getAddress();
+    DatagramChannel worker = DatagramChannel.open().bind(new InetSocketAddress(local, 0));
+    worker.configureBlocking(channel.isBlocking());
+    return worker;
+  }
+
+  public String ID() {
+    return address.getHostAddress() + ":" + port + "/" + Integer.toHexString(session);
+  }
+
+  /**
+   * Returns the IP address attached to this controller.
+   * @return IP address
+   */
+  public InetAddress getAddress() {
+    return address;
+  }
+
+  /**
+   * Returns the port of the client attached to this controller.
+   * @return Client port.
+   */
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * Returns the session of the transfer.
+   * @return Session.
+   */
+  public int getSession() {
+    return session;
+  }
+
+  /**
+   * Notes that the transfer is active now, such as when its client sent a control message.
+   */
+  public void touch() {
+    touched = System.nanoTime();
+  }
+
+  /**
+   * Returns the time the transfer was last active at.
+   * @return Time in nanoseconds.
+   */
+  public long getTouched() {
+    return touched;
+  }
+
+  /**
+   * Returns if the source of the transfer is still being prepared or any of its streams is still
+   * sending.
+   * @return If the transfer is streaming.
+   */
+  public boolean isStreaming() {
+    return preparing || streaming(threads) || streaming(windows);
+  }
+
+  /**
+   * Returns if any of the given streams is still sending.
+   * @param streams Streams, which may be null or hold nulls for workers that were never started.
+   * @return If a stream is still sending.
+   */
+  private static boolean streaming(ServerStream[] streams) {
+    if (streams == null) { return false; }
+    for (ServerStream stream : streams) { if (stream != null && !stream.isDone()) { return true; } }
+    return false;
+  }
+
+  /**
+   * Returns the timer that times the transfer out once it is idle.
+   * @return Timer, or null if none was set.
+   */
+  public ServerTimingWheel.Timer getTimer() {
+    return timer;
+  }
+
+  /**
+   * Sets the timer that times the transfer out once it is idle.
+   * @param timer Timer of the transfer.
+   */
+  public void setTimer(ServerTimingWheel.Timer timer) {
+    this.timer = timer;
+  }
+
+  /**
+   * Starts a ServerRequestStream for the given packets on every worker whose range they cover. Only
+   * streams of every packet carry parity packets, since a repair rarely covers whole blocks.
+   * @param selected Packets to send, or null to send every packet.
+   */
+  private void stream(BitSet selected) {
+    BitSet packets = selected;
+    if (packets == null) {
+      packets = new BitSet(source.count() + 1);
+      packets.set(1, source.count() + 1);
+    }
+    threads = new ServerRequestStream[channels.length];
+    for (int i = 0; i < channels.length; i++) {
+      BitSet part = (BitSet) packets.clone();
+      part.clear(0, bounds[i]);
+      part.clear(bounds[i + 1], Math.max(part.length(), bounds[i + 1]));
+      // A single stream always starts, so that even an empty retry is answered.
+      if (part.isEmpty() && channels.length > 1) { continue; }
+      threads[i] = new ServerRequestStream(source, channels[i], target, part, selected == null ? code : null, pacer, bucket);
+      scheduler.schedule(threads[i]);
+    }
+  }
+
+  /**
+   * Turns ranges of packets into a set of packet numbers. A range that ends in ControlMessage.OPEN runs
+   * until the last packet.
+   * @param ranges First and last packet number of every range, one after the other.
+   * @param count Total number of packets.
+   * @return Set of packet numbers.
+   */
+  private static BitSet packets(int[] ranges, int count) {
+    BitSet packets = new BitSet(count + 1);
+    for (int i = 0; i < ranges.length; i += 2) {
+      int from = Math.max(ranges[i], 1);
+      int to = ranges[i + 1] == ControlMessage.OPEN ? count : Math.min(ranges[i + 1], count);
+      if (from <= to) { packets.set(from, to + 1); }
+    }
+    return packets;
+  }
+
+  /**
+   * Retries the stream again for the packets a failure asks for. Returns false if the stream was
+   * already retried the maximum amount of times or could not be started. A source that is still being
+   * prepared is sent whole once it is ready, so the failure is left for later. The digest is sent
+   * again, in case it was lost.
+   * @param request Failure carrying the ranges of packets the client is missing, or none to resend
+   * every packet.
+   * @return True if it was successfully retried, False if it ran out of retries.
+   * @throws IOException If the digest cannot be sent.
+   */
+  public synchronized boolean retry(ServerRequest request) throws IOException {
+    if (closed || retries >= MAX_RETRIES) { return false; }
+    if (source == null) { return true; }
+    stop();
+    if (digest != null) { control("digest " + digest); }
+    stream(request.count() > 0 ? request.ranges(source.count(), new BitSet(source.count() + 1)) : null);
+    retries++;
+    return true;
+  }
+
+  /**
+   * Stops every running stream.
+   */
+  private void stop() {
+    if (threads != null) {
+      for (ServerStream stream : threads) { if (stream != null) { stream.shutdown(); } }
+    }
+    if (windows != null) {
+      for (ServerStream stream : windows) { if (stream != null) { stream.shutdown(); } }
+    }
+    threads = null;
+    windows = null;
+  }
+
+  /**
+   * Passes an acknowledgement on to a windowed stream, which carries the cumulative packet number and
+   * the ranges of packets received beyond it. Streams are done with the ranges once they return, so
+   * every acknowledgement reads them into the same set. The streams may have been started by a worker
+   * of the store, so they are only looked at with the lock held.
+   * @param request Acknowledgement.
+   */
+  public synchronized void acknowledge(ServerRequest request) {
+    if (windows == null) { return; }
+    selective.clear();
+    request.ranges(source.count(), selective);
+    for (ServerWindowStream window : windows) { window.acknowledge(request.getCumulative(), selective); }
+  }
+
+  /**
+   * Stops any running stream and closes the requested file.
+   * @throws IOException If the file cannot be closed.
+   */
+  public synchronized void shutdown() throws IOException {
+    stop();
+    closed = true;
+    if (this.source != null && !digesting) {
+      this.source.close();
+    }
+    if (this.channels != null) {
+      for (DatagramChannel worker : channels) { if (worker != null && worker != channel) { worker.close(); } }
+    }
+    if (this.bucket != null) {
+      pacer.release(address);
+      this.bucket = null;
+    }
+  }
+}
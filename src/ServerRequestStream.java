@@ -0,0 +1,123 @@
+import java.net.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Streams a set of packets from a ServerPacketSource back to back, limited only by the pacer. With an
+ * error correction code the stream follows every block of data packets with parity packets, from
+ * which the client rebuilds lost data packets of the block without asking for them again. Blocks are
+ * numbered from the start of the file, so such a stream must send every packet of each of its blocks.
+ * A parity packet carries its own number, a flag of ReedSolomon.PARITY, the session if the data packets
+ * do and the number of data packets in its block, followed by its symbol, and it ends in a checksum if
+ * the data packets do.
+ */
+class ServerRequestStream extends ServerStream {
+  private BitSet packets;
+  private int index;
+  // Time the framed packet may be sent at, or -1 if the current packet has not been framed yet.
+  private long at = -1;
+  // Error correction code, or null to send data packets only.
+  private ReedSolomon code;
+  // Parity symbols of the current block, and the symbol of the latest data packet.
+  private byte[][] parities;
+  private byte[] symbol;
+  private ByteBuffer parity;
+  private byte[] parityLine;
+  // Next parity packet of the finished block to send, or -1 while data packets are sent.
+  private int row = -1;
+  private int block;
+  private int size;
+
+  /**
+   * Creates a new ServerRequestStream.
+   * @param source Source to frame packets from.
+   * @param channel Channel to stream packets over.
+   * @param target Address to send packets to.
+   * @param packets Packet numbers to send.
+   * @param pacer Pacer to limit the send rate with.
+   * @param bucket Token bucket of the client.
+   */
+  public ServerRequestStream(ServerPacketSource source, DatagramChannel channel, InetSocketAddress target, BitSet packets, ServerPacer pacer, ServerTokenBucket bucket) {
+    this(source, channel, target, packets, null, pacer, bucket);
+  }
+
+  /**
+   * Creates a new ServerRequestStream that may send parity packets.
+   * @param source Source to frame packets from.
+   * @param channel Channel to stream packets over.
+   * @param target Address to send packets to.
+   * @param packets Packet numbers to send, which must cover whole blocks if there is a code.
+   * @param code Error correction code to send parity packets with, or null for none.
+   * @param pacer Pacer to limit the send rate with.
+   * @param bucket Token bucket of the client.
+   */
+  public ServerRequestStream(ServerPacketSource source, DatagramChannel channel, InetSocketAddress target, BitSet packets, ReedSolomon code, ServerPacer pacer, ServerTokenBucket bucket) {
+    super(source, channel, target, pacer, bucket);
+    this.packets = packets;
+    this.index = packets.nextSetBit(1);
+    this.code = code;
+    if (code != null) {
+      int length = source.payload + ReedSolomon.LENGTH_PREFIX;
+      this.parities = new byte[code.getParity()][length];
+      this.symbol = new byte[length];
+      this.parity = ByteBuffer.allocateDirect(source.header() + 1 + length + ServerPacketSource.CHECKSUM_LENGTH);
+      this.parityLine = line("parity");
+    }
+  }
+
+  protected long pump(long now) throws IOException {
+    while (index != -1 || row != -1) {
+      boolean data = row == -1;
+      if (at < 0) { at = data ? encode(frame(index)) : parity(); }
+      if (at > now && at > (now = System.nanoTime())) { return at; }
+      if (!(data ? transmit(index) : transmit(parity, parityLine, block * code.getParity() + row + 1))) { return BLOCKED; }
+      at = -1;
+      if (!data) {
+        if (++row == code.getParity()) { row = -1; }
+      } else if (code != null && (index % code.getData() == 0 || index == source.count())) {
+        // The block is complete, so its parity packets go out before the next block starts.
+        block = (index - 1) / code.getData();
+        size = index - block * code.getData();
+        row = 0;
+        index = packets.nextSetBit(index + 1);
+      } else {
+        index = packets.nextSetBit(index + 1);
+      }
+    }
+    System.out.println("[STOP] " + ID());
+    return DONE;
+  }
+
+  /**
+   * Adds the framed data packet to the parity symbols of its block. A data symbol is the length of
+   * the payload in two bytes followed by the payload, padded with zeros to the length of a full one.
+   * @param at Time in nanoseconds the packet may be sent at.
+   * @return The given time.
+   */
+  private long encode(long at) {
+    if (code == null) { return at; }
+    int length = source.size(index);
+    symbol[0] = (byte) (length >> 8);
+    symbol[1] = (byte) length;
+    frame.get(frame.position() + source.header(), symbol, ReedSolomon.LENGTH_PREFIX, length);
+    Arrays.fill(symbol, ReedSolomon.LENGTH_PREFIX + length, symbol.length, (byte) 0);
+    code.encode((index - 1) % code.getData(), symbol, parities);
+    return at;
+  }
+
+  /**
+   * Frames the next parity packet of the finished block and reserves its bytes with the pacer. The
+   * parity symbol is cleared for the next block once it is framed.
+   * @return Time in nanoseconds the packet may be sent at.
+   */
+  private long parity() {
+    source.header(parity.clear(), block * code.getParity() + row + 1, ReedSolomon.PARITY).put((byte) size).put(parities[row]);
+    if (source.isChecked()) { ServerPacketSource.checksum(parity); }
+    parity.flip();
+    Arrays.fill(parities[row], (byte) 0);
+    return System.nanoTime() + pacer.reserve(bucket, parity.remaining());
+  }
+}
@@ -0,0 +1,10 @@
+/**
+ * Starts streams on whatever drives them, such as a thread of their own or a ServerEventLoop.
+ */
+interface ServerScheduler {
+  /**
+   * Starts driving the given stream until it is done.
+   * @param stream Stream to drive.
+   */
+  void schedule(ServerStream stream);
+}
@@ -0,0 +1,40 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Source that frames the packets of another source with the session of their transfer after the
+ * header, for clients that run several transfers over one socket and tell their packets apart by
+ * session. Packets are framed from the other source's file on demand, since packets it framed up
+ * front are shared with transfers of other sessions.
+ */
+class ServerSessionSource extends ServerPacketSource {
+  private ServerPacketSource source;
+  private int session;
+
+  /**
+   * Creates a new ServerSessionSource.
+   * @param source Source of the file, which is closed along with this source.
+   * @param session Session of the transfer.
+   */
+  public ServerSessionSource(ServerPacketSource source, int session) {
+    super(source.length, source.getLimit(), source.isChecked(), HEADER_LENGTH + SESSION_LENGTH);
+    this.source = source;
+    this.session = session;
+  }
+
+  public ByteBuffer header(ByteBuffer frame, int index, byte flag) {
+    return super.header(frame, index, flag).putInt(session);
+  }
+
+  protected void copy(long offset, int length, ByteBuffer frame) throws IOException {
+    source.copy(offset, length, frame);
+  }
+
+  public byte[] digest() throws IOException {
+    return source.digest();
+  }
+
+  public void close() throws IOException {
+    source.close();
+  }
+}
@@ -0,0 +1,183 @@
+import java.net.*;
+
+/**
+ * Table of the controllers of running transfers, keyed by the address and port of the client along
+ * with the session, so that finding the controller of a control message builds no string and
+ * allocates nothing. The port and the session are packed into a long, while the address is compared
+ * as it is, so IPv6 clients are covered as well. The table is split by hash into stripes, each an
+ * open addressing table with linear probing behind a lock of its own, so receiving threads only
+ * contend when their clients land in the same stripe.
+ */
+class ServerSessionTable {
+  private static final int STRIPES = 16;
+  private static final int INITIAL_CAPACITY = 16;
+  private Stripe[] stripes = new Stripe[STRIPES];
+
+  /**
+   * Entries of one stripe, where an empty slot has no address. Entries are kept at most half as many
+   * as slots, so every probe ends at an empty slot soon.
+   */
+  private static class Stripe {
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private InetAddress[] addresses = new InetAddress[INITIAL_CAPACITY];
+    private ServerRequestController[] controllers = new ServerRequestController[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Finds the slot of an entry.
+     * @param address Client address.
+     * @param key Packed port and session.
+     * @param hash Hash of the entry within the stripe.
+     * @return Slot of the entry, or -1 minus the empty slot the entry would go in.
+     */
+    private int find(InetAddress address, long key, int hash) {
+      int mask = keys.length - 1;
+      for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+        if (addresses[slot] == null) { return -slot - 1; }
+        if (keys[slot] == key && addresses[slot].equals(address)) { return slot; }
+      }
+    }
+
+    private synchronized ServerRequestController get(InetAddress address, long key, int hash) {
+      int slot = find(address, key, hash);
+      return slot >= 0 ? controllers[slot] : null;
+    }
+
+    private synchronized ServerRequestController put(InetAddress address, long key, int hash, ServerRequestController controller) {
+      int slot = find(address, key, hash);
+      if (slot >= 0) {
+        ServerRequestController previous = controllers[slot];
+        controllers[slot] = controller;
+        return previous;
+      }
+      slot = -slot - 1;
+      keys[slot] = key;
+      addresses[slot] = address;
+      controllers[slot] = controller;
+      if (++size * 2 > keys.length) { grow(); }
+      return null;
+    }
+
+    /**
+     * Removes an entry, shifting back every entry of the probe run after it that may take its slot,
+     * so that no probe stops short of an entry it should find.
+     */
+    private synchronized ServerRequestController remove(InetAddress address, long key, int hash) {
+      int hole = find(address, key, hash);
+      if (hole < 0) { return null; }
+      ServerRequestController previous = controllers[hole];
+      int mask = keys.length - 1;
+      for (int slot = (hole + 1) & mask; addresses[slot] != null; slot = (slot + 1) & mask) {
+        int home = slot(addresses[slot], keys[slot]) & mask;
+        // An entry only moves back if its home slot does not lie between the hole and itself.
+        if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+          keys[hole] = keys[slot];
+          addresses[hole] = addresses[slot];
+          controllers[hole] = controllers[slot];
+          hole = slot;
+        }
+      }
+      addresses[hole] = null;
+      controllers[hole] = null;
+      size--;
+      return previous;
+    }
+
+    /**
+     * Doubles the number of slots and puts every entry back in its slot.
+     */
+    private void grow() {
+      long[] keys = this.keys;
+      InetAddress[] addresses = this.addresses;
+      ServerRequestController[] controllers = this.controllers;
+      this.keys = new long[keys.length * 2];
+      this.addresses = new InetAddress[keys.length * 2];
+      this.controllers = new ServerRequestController[keys.length * 2];
+      for (int i = 0; i < keys.length; i++) {
+        if (addresses[i] == null) { continue; }
+        int slot = -find(addresses[i], keys[i], slot(addresses[i], keys[i])) - 1;
+        this.keys[slot] = keys[i];
+        this.addresses[slot] = addresses[i];
+        this.controllers[slot] = controllers[i];
+      }
+    }
+  }
+
+  /**
+   * Creates a new, empty ServerSessionTable.
+   */
+  public ServerSessionTable() {
+    for (int i = 0; i < STRIPES; i++) { stripes[i] = new Stripe(); }
+  }
+
+  /**
+   * Returns the controller of a transfer.
+   * @param address Client address.
+   * @param port Client port.
+   * @param session Session of the transfer.
+   * @return Controller, or null if the transfer is not running.
+   */
+  public ServerRequestController get(InetAddress address, int port, int session) {
+    long key = key(port, session);
+    int hash = hash(address, key);
+    return stripes[hash & (STRIPES - 1)].get(address, key, hash >>> 4);
+  }
+
+  /**
+   * Sets the controller of a transfer.
+   * @param address Client address.
+   * @param port Client port.
+   * @param session Session of the transfer.
+   * @param controller Controller of the transfer.
+   * @return Controller the transfer had before, or null.
+   */
+  public ServerRequestController put(InetAddress address, int port, int session, ServerRequestController controller) {
+    long key = key(port, session);
+    int hash = hash(address, key);
+    return stripes[hash & (STRIPES - 1)].put(address, key, hash >>> 4, controller);
+  }
+
+  /**
+   * Removes the controller of a transfer.
+   * @param address Client address.
+   * @param port Client port.
+   * @param session Session of the transfer.
+   * @return Controller the transfer had, or null if it was not running.
+   */
+  public ServerRequestController remove(InetAddress address, int port, int session) {
+    long key = key(port, session);
+    int hash = hash(address, key);
+    return stripes[hash & (STRIPES - 1)].remove(address, key, hash >>> 4);
+  }
+
+  /**
+   * Packs a port and a session into a key.
+   * @param port Client port.
+   * @param session Session of the transfer.
+   * @return Key.
+   */
+  private static long key(int port, int session) {
+    return (long) port << 32 | (session & 0xffffffffL);
+  }
+
+  /**
+   * Mixes the address and the key into a hash, whose low bits pick the stripe.
+   * @param address Client address, whose hash code is the address itself for IPv4.
+   * @param key Packed port and session.
+   * @return Hash.
+   */
+  private static int hash(InetAddress address, long key) {
+    long mixed = (key ^ (long) address.hashCode() << 16) * 0x9E3779B97F4A7C15L;
+    return (int) (mixed ^ mixed >>> 32);
+  }
+
+  /**
+   * Returns the hash of an entry within its stripe.
+   * @param address Client address.
+   * @param key Packed port and session.
+   * @return Hash within the stripe.
+   */
+  private static int slot(InetAddress address, long key) {
+    return hash(address, key) >>> 4;
+  }
+}
@@ -0,0 +1,55 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Source that frames packets from the signature of a file, which a client that holds an older version
+ * of the file matches against that version, see RollingChecksum. Every block of the signature is as
+ * large as the payload of the packets the file is framed with, so the client finds the packets it
+ * already has and only asks for the rest. Blocks are signed by the server and matched by the client,
+ * rather than the other way around, since a signature of a large file does not fit in a request.
+ */
+class ServerSignatureSource extends ServerPacketSource {
+  private ByteBuffer content;
+
+  /**
+   * Creates a new ServerSignatureSource.
+   * @param content Read only signature of the file.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   */
+  public ServerSignatureSource(ByteBuffer content, int limit, boolean checked) {
+    super(content.capacity(), limit, checked);
+    this.content = content;
+  }
+
+  /**
+   * Signs every full block of a source, with blocks as large as the payload of its packets. The last
+   * packet of the file is always sent, so the block it carries is left out.
+   * @param source Source to read the file from, which is left open.
+   * @return Read only signature of the file.
+   * @throws IOException If the source cannot be read or the signature does not fit in a buffer.
+   */
+  public static ByteBuffer sign(ServerPacketSource source) throws IOException {
+    int block = source.payload;
+    long blocks = source.length / block;
+    if (RollingChecksum.HEADER_LENGTH + blocks * RollingChecksum.ENTRY_LENGTH > Integer.MAX_VALUE) {
+      throw new IOException("Signature is too large to hold in memory");
+    }
+    ByteBuffer signature = ByteBuffer.allocate(RollingChecksum.HEADER_LENGTH + (int) blocks * RollingChecksum.ENTRY_LENGTH);
+    signature.putLong(source.length).putInt(block);
+    ByteBuffer chunk = ByteBuffer.allocate(block);
+    RollingChecksum rolling = new RollingChecksum(block);
+    MessageDigest digest = RollingChecksum.digest();
+    for (long i = 0; i < blocks; i++) {
+      source.copy(i * block, block, chunk.clear());
+      signature.putInt(rolling.reset(chunk.array(), 0));
+      signature.putLong(RollingChecksum.strong(digest, chunk.array(), 0, block));
+    }
+    return signature.flip().asReadOnlyBuffer();
+  }
+
+  protected void copy(long offset, int length, ByteBuffer frame) {
+    frame.put(frame.position(), content, (int) offset, length).position(frame.position() + length);
+  }
+}
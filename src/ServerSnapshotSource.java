@@ -0,0 +1,39 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Source that frames packets from a snapshot of the file held by a ServerFileCache. The snapshot is
+ * pinned until the source is closed, so every packet of a transfer and its retries comes from the same
+ * version of the file even if the file changes on disk in the meantime.
+ */
+class ServerSnapshotSource extends ServerPacketSource {
+  private ServerFileCache cache;
+  private ServerFileSnapshot snapshot;
+
+  /**
+   * Creates a new ServerSnapshotSource.
+   * @param cache Cache the snapshot was acquired from.
+   * @param snapshot Pinned snapshot of the file.
+   * @param limit Packet size limit for each framed packet.
+   * @param checked If every packet ends in a checksum.
+   */
+  public ServerSnapshotSource(ServerFileCache cache, ServerFileSnapshot snapshot, int limit, boolean checked) {
+    super(snapshot.getContent().capacity(), limit, checked);
+    this.cache = cache;
+    this.snapshot = snapshot;
+  }
+
+  protected void copy(long offset, int length, ByteBuffer frame) {
+    frame.put(frame.position(), snapshot.getContent(), (int) offset, length).position(frame.position() + length);
+  }
+
+  public byte[] digest() throws IOException {
+    return cache.digest(snapshot, this, false);
+  }
+
+  public void close() {
+    // Closing twice must not unpin the snapshot twice.
+    if (snapshot != null) { cache.release(snapshot); }
+    snapshot = null;
+  }
+}
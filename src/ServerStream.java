@@ -0,0 +1,237 @@
+import java.net.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Send state machine of a stream of packets to a single client. A stream never blocks: pump sends as
+ * many packets as it currently may and returns when it wants to be pumped again. Streams are driven
+ * either by a thread of their own, see run, or by a ServerEventLoop.
+ */
+abstract class ServerStream implements Runnable {
+  // Returned by pump once the stream is finished.
+  public static final long DONE = -1;
+  // Returned by pump when the socket's send buffer is full.
+  public static final long BLOCKED = -2;
+  // Returned by pump when only an acknowledgement can make progress.
+  public static final long IDLE = Long.MAX_VALUE;
+  // Time a thread waits for a full send buffer to drain before trying again.
+  private static final long DRAIN = 200_000;
+  private static final byte[] BYTES = ("bytes" + System.lineSeparator()).getBytes();
+  // Room left in a log line for the two numbers and the end of the line.
+  private static final int ROOM = 32;
+  protected ReentrantLock lock = new ReentrantLock();
+  // Signalled whenever an acknowledgement arrives or the stream is shut down.
+  private Condition changed = lock.newCondition();
+  protected DatagramChannel channel;
+  protected ServerPacketSource source;
+  protected ServerTokenBucket bucket;
+  protected ServerPacer pacer;
+  protected InetSocketAddress target;
+  protected volatile boolean active = true;
+  private ServerEventLoop loop;
+  // Buffer holding the next packet to send, see ServerPacketSource.buffer.
+  protected ByteBuffer frame;
+  // Log line of a sent packet, which is formatted in place so that sending a packet allocates nothing.
+  private byte[] line;
+  // Time the event loop driving this stream last scheduled it for.
+  long deadline;
+
+  /**
+   * Creates a new ServerStream.
+   * @param source Source to frame packets from.
+   * @param channel Channel to stream packets over.
+   * @param target Address to send packets to.
+   * @param pacer Pacer to limit the send rate with.
+   * @param bucket Token bucket of the client.
+   */
+  protected ServerStream(ServerPacketSource source, DatagramChannel channel, InetSocketAddress target, ServerPacer pacer, ServerTokenBucket bucket) {
+    this.source = source;
+    this.channel = channel;
+    this.target = target;
+    this.pacer = pacer;
+    this.bucket = bucket;
+    this.frame = source.buffer();
+    this.line = line("packet");
+  }
+
+  /**
+   * Sends as many packets as the stream currently may. Called with the lock held.
+   * @param now Current time in nanoseconds.
+   * @return Time in nanoseconds to pump the stream again at, or one of DONE, BLOCKED and IDLE.
+   * @throws IOException If a socket error occurs.
+   */
+  protected abstract long pump(long now) throws IOException;
+
+  /**
+   * Returns if the stream is done sending, because it sent everything it had to or was shut down.
+   * @return If the stream is done.
+   */
+  public boolean isDone() {
+    lock.lock();
+    try {
+      return !active || frame == null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Pumps the stream under its lock.
+   * @param now Current time in nanoseconds.
+   * @return Time in nanoseconds to pump the stream again at, or one of DONE, BLOCKED and IDLE.
+   */
+  public long step(long now) {
+    lock.lock();
+    long deadline = DONE;
+    try {
+      // The buffer is gone once the stream is done, even if an acknowledgement arrives afterwards.
+      if (active && frame != null) { deadline = pump(now); }
+    } catch (ClosedChannelException error) {
+      // The server is shutting down.
+    } catch (IOException error) {
+      // A shutdown closes the source underneath a running stream, so only report errors while active.
+      if (active) { error.printStackTrace(); }
+    } finally {
+      if (deadline == DONE && frame != null) {
+        source.recycle(frame);
+        frame = null;
+      }
+      lock.unlock();
+    }
+    return deadline;
+  }
+
+  /**
+   * Drives the stream from the calling thread until it is done, waiting on its condition in between,
+   * which parks the thread with the lock released, including while the send buffer is full.
+   */
+  public void run() {
+    lock.lock();
+    try {
+      for (long deadline; (deadline = step(System.nanoTime())) != DONE; ) {
+        long wait = deadline - System.nanoTime();
+        if (deadline == IDLE) {
+          changed.await();
+        } else if (deadline == BLOCKED) {
+          // Waiting releases the lock, so acknowledgements and a shutdown get through in the meantime.
+          changed.awaitNanos(DRAIN);
+        } else if (wait > ServerPacer.SPIN) {
+          changed.awaitNanos(wait - ServerPacer.SPIN);
+        } else {
+          // Parking cannot wake up this precisely, so spin out short waits for the pacer.
+          while (System.nanoTime() < deadline) { Thread.onSpinWait(); }
+        }
+      }
+    } catch (InterruptedException error) {
+      error.printStackTrace();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Hands the stream to an event loop, which pumps it from then on.
+   * @param loop Event loop to drive the stream.
+   */
+  public void attach(ServerEventLoop loop) {
+    this.loop = loop;
+    loop.wake(this);
+  }
+
+  /**
+   * Stops the stream.
+   */
+  public void shutdown() {
+    lock.lock();
+    try {
+      active = false;
+      wake();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wakes up whatever drives the stream so that it gets pumped again. Called with the lock held.
+   */
+  protected void wake() {
+    changed.signalAll();
+    if (loop != null) { loop.wake(this); }
+  }
+
+  /**
+   * Frames a packet to be sent next and reserves its bytes with the pacer.
+   * @param index Packet number to frame.
+   * @return Time in nanoseconds the packet may be sent at.
+   * @throws IOException If the packet cannot be read.
+   */
+  protected long frame(int index) throws IOException {
+    int length = source.read(index, frame);
+    return System.nanoTime() + pacer.reserve(bucket, length);
+  }
+
+  /**
+   * Sends the framed packet.
+   * @param index Packet number of the framed packet.
+   * @return False if the socket's send buffer is full and the packet must be sent again later.
+   * @throws IOException If a socket error occurs.
+   */
+  protected boolean transmit(int index) throws IOException {
+    return transmit(frame, line, index);
+  }
+
+  /**
+   * Sends a packet and logs it.
+   * @param packet Packet to send.
+   * @param line Log line to format the packet number and length into, see line.
+   * @param index Number to log the packet with.
+   * @return False if the socket's send buffer is full and the packet must be sent again later.
+   * @throws IOException If a socket error occurs.
+   */
+  protected boolean transmit(ByteBuffer packet, byte[] line, int index) throws IOException {
+    int length = packet.remaining();
+    if (channel.send(packet, target) == 0) { return false; }
+    int end = print(line, length, print(line, index, line.length - ROOM));
+    System.arraycopy(BYTES, 0, line, end, BYTES.length);
+    System.out.write(line, 0, end + BYTES.length);
+    return true;
+  }
+
+  /**
+   * Creates the log line for sent packets of some kind, with room for their number and length.
+   * @param kind Kind of packet, such as "packet".
+   * @return Log line.
+   */
+  protected byte[] line(String kind) {
+    byte[] start = ("[SEND] " + ID() + " " + kind + " ").getBytes();
+    return Arrays.copyOf(start, start.length + ROOM);
+  }
+
+  /**
+   * Writes a number into a log line followed by a space.
+   * @param line Log line to write into.
+   * @param value Non-negative number to write.
+   * @param at Position in the log line to write it at.
+   * @return Position after the space.
+   */
+  private static int print(byte[] line, int value, int at) {
+    int end = at + 1;
+    for (int rest = value; rest >= 10; rest /= 10) { end++; }
+    for (int i = end - 1; i >= at; i--, value /= 10) { line[i] = (byte) ('0' + value % 10); }
+    line[end] = ' ';
+    return end + 1;
+  }
+
+  /**
+   * Returns a string that identifies the client of this stream.
+   * @return Client address and port.
+   */
+  protected String ID() {
+    return target.getAddress().getHostAddress() + ":" + target.getPort();
+  }
+}
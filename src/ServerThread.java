@@ -0,0 +1,45 @@
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * Thread that runs the server process on a blocking channel, giving every stream a thread of its own.
+ */
+class ServerThread extends Thread {
+  private DatagramChannel channel;
+  private ServerDispatcher dispatcher;
+  private ByteBuffer buffer = ByteBuffer.allocate(ControlMessage.MAX_LENGTH);
+  // Request every datagram is read into, since requests are handled one at a time.
+  private ServerRequest request = new ServerRequest();
+  private boolean running = true;
+
+  /**
+   * Creates a new ServerThread.
+   * @param channel Blocking channel bound to the server's port.
+   * @param dispatcher Dispatcher to handle every request with.
+   */
+  public ServerThread(DatagramChannel channel, ServerDispatcher dispatcher) {
+    this.channel = channel;
+    this.dispatcher = dispatcher;
+  }
+
+  /**
+   * Starts the server listening on port 13231 so it can accept any requests that make it into the server.
+   */
+  public void run() {
+    System.out.println("Server running on localhost:13231");
+    while (running) {
+      try {
+        // Accept any new requests to the server.
+        buffer.clear();
+        InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+        dispatcher.handle(request.read(buffer.flip(), sender));
+      } catch (ClosedChannelException error) {
+        return;
+      } catch (Exception error) {
+        error.printStackTrace();
+      }
+    }
+  }
+}
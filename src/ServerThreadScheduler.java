@@ -0,0 +1,49 @@
+import java.lang.reflect.Method;
+
+/**
+ * Scheduler that gives every stream a thread of its own. Virtual threads keep the straight line style
+ * of a thread per stream while letting tens of thousands of streams run at once. Streams wait on locks
+ * rather than monitors and read files with positional reads, so they never pin their carrier thread.
+ */
+class ServerThreadScheduler implements ServerScheduler {
+  // Thread.Builder.unstarted of a virtual thread builder, looked up reflectively so that the server
+  // still runs on releases without virtual threads.
+  private Method unstarted;
+  private Object builder;
+
+  /**
+   * Creates a new ServerThreadScheduler.
+   * @param virtual If streams should run on virtual threads instead of platform threads.
+   */
+  public ServerThreadScheduler(boolean virtual) {
+    if (!virtual) { return; }
+    try {
+      builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+    } catch (ReflectiveOperationException error) {
+      System.out.println("Virtual threads need Java 21 or newer, using platform threads");
+    }
+  }
+
+  /**
+   * Returns if streams run on virtual threads.
+   * @return If streams run on virtual threads.
+   */
+  public boolean isVirtual() {
+    return unstarted != null;
+  }
+
+  /**
+   * Starts a new thread that drives the stream.
+   * @param stream Stream to drive.
+   */
+  public void schedule(ServerStream stream) {
+    Thread thread;
+    try {
+      thread = unstarted != null ? (Thread) unstarted.invoke(builder, stream) : new Thread(stream);
+    } catch (ReflectiveOperationException error) {
+      throw new IllegalStateException(error);
+    }
+    thread.start();
+  }
+}
@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+
+/**
+ * Hashed timing wheel that runs the timers of every transfer from a single thread, however many
+ * transfers there are. Time is cut into ticks and the wheel has a slot for every tick of a round,
+ * holding a list of the timers due in that tick, so scheduling or cancelling a timer only links it
+ * into or out of its slot. A timer further away than a round stays in its slot for as many rounds as
+ * it is away. Timers fire up to a tick late, which suits deadlines of seconds such as idle transfers.
+ */
+class ServerTimingWheel extends Thread {
+  private static final int SLOTS = 512;
+  private long tick;
+  private long start = System.nanoTime();
+  // Ticks that have passed, whose slots have all been run.
+  private long ticks;
+  private Timer[] slots = new Timer[SLOTS];
+  // Timers that expired in the latest tick, which are run once the wheel is unlocked.
+  private ArrayList<Timer> expired = new ArrayList<>();
+
+  /**
+   * Timer that can be scheduled on a ServerTimingWheel. A timer links itself into the list of its
+   * slot, so scheduling it allocates nothing, and it can be scheduled again once it expired.
+   */
+  public abstract static class Timer {
+    private Timer previous;
+    private Timer next;
+    // Slot the timer is linked into, or -1 if it is not scheduled.
+    private int slot = -1;
+    private long rounds;
+
+    /**
+     * Runs once the timer expires, on the thread of the wheel.
+     */
+    protected abstract void expire();
+  }
+
+  /**
+   * Creates a new ServerTimingWheel.
+   * @param tick Length of a tick in nanoseconds.
+   */
+  public ServerTimingWheel(long tick) {
+    this.tick = tick;
+    setDaemon(true);
+  }
+
+  /**
+   * Schedules a timer to expire after the given delay, replacing whatever it was scheduled for. The
+   * timer goes into the slot of the first tick at or after the deadline.
+   * @param timer Timer to schedule.
+   * @param delay Delay in nanoseconds.
+   */
+  public synchronized void schedule(Timer timer, long delay) {
+    unlink(timer);
+    long due = Math.max(1, (System.nanoTime() - start + delay + tick - 1) / tick - ticks);
+    timer.slot = (int) ((ticks + due) & (SLOTS - 1));
+    timer.rounds = (due - 1) / SLOTS;
+    timer.previous = null;
+    timer.next = slots[timer.slot];
+    if (timer.next != null) { timer.next.previous = timer; }
+    slots[timer.slot] = timer;
+  }
+
+  /**
+   * Cancels a timer, which does nothing if it is not scheduled.
+   * @param timer Timer to cancel.
+   */
+  public synchronized void cancel(Timer timer) {
+    unlink(timer);
+  }
+
+  /**
+   * Unlinks a timer from the list of its slot.
+   * @param timer Timer to unlink.
+   */
+  private void unlink(Timer timer) {
+    if (timer.slot == -1) { return; }
+    if (timer.previous != null) { timer.previous.next = timer.next; } else { slots[timer.slot] = timer.next; }
+    if (timer.next != null) { timer.next.previous = timer.previous; }
+    timer.previous = null;
+    timer.next = null;
+    timer.slot = -1;
+  }
+
+  /**
+   * Implementation of the Thread.run function. Every tick that has passed runs its slot, even if the
+   * thread woke up late, so no timer is skipped.
+   */
+  public void run() {
+    while (true) {
+      long wait = start + (ticks + 1) * tick - System.nanoTime();
+      if (wait > 0) {
+        try {
+          Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        } catch (InterruptedException error) {
+          return;
+        }
+        continue;
+      }
+      advance();
+      for (Timer timer : expired) {
+        try {
+          timer.expire();
+        } catch (Exception error) {
+          error.printStackTrace();
+        }
+      }
+      expired.clear();
+    }
+  }
+
+  /**
+   * Moves on by a tick, unlinking every timer of its slot that is due in this round.
+   */
+  private synchronized void advance() {
+    ticks++;
+    for (Timer timer = slots[(int) (ticks & (SLOTS - 1))], next; timer != null; timer = next) {
+      next = timer.next;
+      if (timer.rounds > 0) {
+        timer.rounds--;
+      } else {
+        unlink(timer);
+        expired.add(timer);
+      }
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/**
+ * Token bucket that limits a flow of packets to a rate in bytes per second. The bucket holds at most a
+ * burst of bytes, and a sender that takes more than the bucket holds goes into debt and must wait for
+ * the debt to be paid back at the bucket's rate before sending.
+ */
+class ServerTokenBucket {
+  private long rate;
+  private long burst;
+  private double tokens;
+  private long updated = System.nanoTime();
+  // Number of streams sharing this bucket.
+  int users;
+
+  /**
+   * Creates a new ServerTokenBucket that starts full.
+   * @param rate Rate in bytes per second, or 0 for no limit.
+   * @param burst Maximum number of bytes that can be sent back to back.
+   */
+  public ServerTokenBucket(long rate, long burst) {
+    this.rate = rate;
+    this.burst = burst;
+    this.tokens = burst;
+  }
+
+  /**
+   * Changes the rate and burst of the bucket, which applies to every following reservation.
+   * @param rate Rate in bytes per second, or 0 for no limit.
+   * @param burst Maximum number of bytes that can be sent back to back.
+   */
+  public synchronized void limit(long rate, long burst) {
+    refill(System.nanoTime());
+    this.rate = rate;
+    this.burst = burst;
+    this.tokens = Math.min(tokens, burst);
+  }
+
+  /**
+   * Takes the given amount of bytes out of the bucket.
+   * @param bytes Number of bytes about to be sent.
+   * @return Nanoseconds to wait before sending them.
+   */
+  public synchronized long reserve(int bytes) {
+    if (rate <= 0) { return 0; }
+    long now = System.nanoTime();
+    refill(now);
+    tokens -= bytes;
+    return tokens >= 0 ? 0 : (long) (-tokens * 1_000_000_000L / rate);
+  }
+
+  /**
+   * Adds the tokens earned since the last update.
+   * @param now Current time in nanoseconds.
+   */
+  private void refill(long now) {
+    if (rate > 0) { tokens = Math.min(burst, tokens + (double) (now - updated) * rate / 1_000_000_000L); }
+    updated = now;
+  }
+}
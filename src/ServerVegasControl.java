@@ -0,0 +1,48 @@
+/**
+ * Delay based congestion control, like TCP Vegas. Once per round trip the expected throughput at the
+ * lowest round trip time seen is compared against the actual throughput, and the difference estimates
+ * how many packets are sitting in queues along the path. The window grows while fewer than ALPHA
+ * packets are queued and shrinks when more than BETA are, so the path is kept full without building up
+ * the queues that lead to loss.
+ */
+class ServerVegasControl implements ServerCongestionControl {
+  private static final int INITIAL_WINDOW = 4;
+  private static final int ALPHA = 2;
+  private static final int BETA = 4;
+  private static final int GAMMA = 1;
+  private int window = INITIAL_WINDOW;
+  private int threshold = Integer.MAX_VALUE;
+  private long base = Long.MAX_VALUE;
+  private long round = Long.MAX_VALUE;
+  private int counted;
+
+  public int window() {
+    return window;
+  }
+
+  public void acknowledged(int packets, long rtt) {
+    if (rtt > 0) {
+      base = Math.min(base, rtt);
+      round = Math.min(round, rtt);
+    }
+    // Only adjust once a whole window has been acknowledged, i.e. once per round trip.
+    if ((counted += packets) < window || round == Long.MAX_VALUE) { return; }
+    double queued = (double) window * (round - base) / round;
+    if (window < threshold) {
+      // Slow start doubles the window every round trip until queues start to build.
+      if (queued > GAMMA) { threshold = window; } else { window *= 2; }
+    } else if (queued < ALPHA) {
+      window++;
+    } else if (queued > BETA) {
+      window = Math.max(2, window - 1);
+    }
+    counted = 0;
+    round = Long.MAX_VALUE;
+  }
+
+  public void lost(boolean timeout) {
+    threshold = Math.max(2, window / 2);
+    window = timeout ? 1 : threshold;
+    counted = 0;
+  }
+}
@@ -0,0 +1,200 @@
+import java.net.*;
+import java.io.*;
+import java.nio.channels.DatagramChannel;
+import java.util.BitSet;
+
+/**
+ * Streams a range of packets from a ServerPacketSource while keeping at most a window of unacknowledged
+ * packets in flight. The client acknowledges with a cumulative packet number plus selective ranges of
+ * packets received beyond it, and each packet is retransmitted on its own once its timeout expires.
+ * An optional ServerCongestionControl shrinks the window below its maximum in reaction to loss and
+ * round trip times.
+ */
+class ServerWindowStream extends ServerStream {
+  // Retransmission timeout bounds in nanoseconds, loosely following RFC 6298.
+  private static final long INITIAL_TIMEOUT = 100_000_000L;
+  private static final long MIN_TIMEOUT = 10_000_000L;
+  private static final long MAX_TIMEOUT = 2_000_000_000L;
+  // Number of packets acknowledged past a hole before the hole is presumed lost.
+  private static final int REORDER_THRESHOLD = 3;
+  // Number of times a single packet is sent before the client is presumed gone.
+  private static final int MAX_ATTEMPTS = 8;
+  private ServerCongestionControl control;
+  private int window;
+  // Highest packet sent when the window was last reduced, so one window of losses reduces it once.
+  private int recovery;
+  // Send state, indexed by packet number modulo the window size.
+  private long[] sent;
+  private int[] attempts;
+  private BitSet acknowledged = new BitSet();
+  private BitSet lost = new BitSet();
+  // Range of packet numbers this stream sends.
+  private int first;
+  private int last;
+  private int cumulative;
+  private int next;
+  // Packet that was framed but not sent yet, and the time it may be sent at.
+  private int pending;
+  private long at;
+  private long smoothed = -1;
+  private long variance;
+  private long timeout = INITIAL_TIMEOUT;
+  // Earliest time any packet in flight may time out, and the time of the last back off.
+  private long expiry = Long.MAX_VALUE;
+  private long backoff;
+
+  /**
+   * Creates a new ServerWindowStream.
+   * @param source Source to frame packets from.
+   * @param channel Channel to stream packets over.
+   * @param target Address to send packets to.
+   * @param first First packet number to send.
+   * @param last Last packet number to send.
+   * @param window Maximum number of unacknowledged packets in flight.
+   * @param control Congestion control to limit the window with, or null to always use the maximum.
+   * @param pacer Pacer to limit the send rate with.
+   * @param bucket Token bucket of the client.
+   */
+  public ServerWindowStream(ServerPacketSource source, DatagramChannel channel, InetSocketAddress target, int first, int last, int window, ServerCongestionControl control, ServerPacer pacer, ServerTokenBucket bucket) {
+    super(source, channel, target, pacer, bucket);
+    this.first = first;
+    this.last = last;
+    this.cumulative = first - 1;
+    this.next = first;
+    this.control = control;
+    this.window = window;
+    this.sent = new long[window];
+    this.attempts = new int[window];
+  }
+
+  /**
+   * Records an acknowledgement from the client and wakes the stream up to fill the window again.
+   * @param cumulative Every packet up to and including this number has been received.
+   * @param selective Packets received beyond the cumulative packet number.
+   */
+  public void acknowledge(int cumulative, BitSet selective) {
+    lock.lock();
+    try {
+      acknowledged(cumulative, selective);
+      wake();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Updates the send state with an acknowledgement from the client.
+   * @param cumulative Every packet up to and including this number has been received.
+   * @param selective Packets received beyond the cumulative packet number.
+   */
+  private void acknowledged(int cumulative, BitSet selective) {
+    long now = System.nanoTime(), rtt = -1;
+    int highest = Math.min(Math.max(cumulative, selective.length() - 1), next - 1), packets = 0;
+    for (int index = this.cumulative + 1; index <= highest; index++) {
+      if (acknowledged.get(index) || (index > cumulative && !selective.get(index))) { continue; }
+      acknowledged.set(index);
+      packets++;
+      // Karn's algorithm: only packets that were sent once give an unambiguous round trip time.
+      if (attempts[index % window] == 1) { measure(rtt = now - sent[index % window]); }
+    }
+    while (acknowledged.get(this.cumulative + 1)) { this.cumulative++; }
+    if (control != null && packets > 0) { control.acknowledged(packets, rtt); }
+    // A hole with enough packets acknowledged after it is presumed lost and resent right away.
+    for (int index = this.cumulative + 1; index <= highest - REORDER_THRESHOLD; index++) {
+      if (!acknowledged.get(index) && attempts[index % window] == 1 && !lost.get(index)) {
+        lost.set(index);
+        congested(index, false);
+      }
+    }
+  }
+
+  /**
+   * Tells the congestion control about a loss, unless the window was already reduced for a loss in the
+   * same window of packets.
+   * @param index Packet number that was lost.
+   * @param timeout If the loss was found by a retransmission timeout.
+   */
+  private void congested(int index, boolean timeout) {
+    if (control == null || (index <= recovery && !timeout)) { return; }
+    control.lost(timeout);
+    recovery = next - 1;
+  }
+
+  /**
+   * Folds a round trip time sample into the retransmission timeout.
+   * @param sample Round trip time in nanoseconds.
+   */
+  private void measure(long sample) {
+    if (smoothed < 0) {
+      smoothed = sample;
+      variance = sample / 2;
+    } else {
+      variance = (3 * variance + Math.abs(smoothed - sample)) / 4;
+      smoothed = (7 * smoothed + sample) / 8;
+    }
+    timeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, smoothed + 4 * variance));
+  }
+
+  protected long pump(long now) throws IOException {
+    while (cumulative < last) {
+      if (pending == 0) {
+        if ((pending = select(now)) == 0) { break; }
+        if (pending < 0) {
+          System.out.println("[GONE] " + ID());
+          return DONE;
+        }
+        at = frame(pending);
+      }
+      if (at > now && at > (now = System.nanoTime())) { return at; }
+      if (!transmit(pending)) { return BLOCKED; }
+      if (pending == next) { next++; }
+      sent[pending % window] = now;
+      attempts[pending % window]++;
+      pending = 0;
+    }
+    if (cumulative >= last) {
+      System.out.println("[STOP] " + ID());
+      return DONE;
+    }
+    expiry = Long.MAX_VALUE;
+    for (int index = cumulative + 1; index < next; index++) {
+      if (!acknowledged.get(index)) { expiry = Math.min(expiry, sent[index % window] + timeout); }
+    }
+    return expiry == Long.MAX_VALUE ? IDLE : expiry;
+  }
+
+  /**
+   * Picks the packet to send next: first packets presumed lost, then packets whose timeout expired, and
+   * then new packets as long as the window allows.
+   * @param now Current time in nanoseconds.
+   * @return Packet number, 0 if nothing may be sent right now, or -1 if the client is presumed gone.
+   */
+  private int select(long now) {
+    int index = lost.nextSetBit(cumulative + 1);
+    if (index != -1 && index < next) {
+      lost.clear(index);
+      return attempts[index % window] < MAX_ATTEMPTS ? index : -1;
+    }
+    if (now >= expiry) {
+      for (index = cumulative + 1; index < next; index++) {
+        if (acknowledged.get(index) || now - sent[index % window] < timeout) { continue; }
+        // Back off once per timeout, not once for every packet that was in flight at the time, so
+        // that a congested path is not hammered with the same packets.
+        if (sent[index % window] >= backoff) {
+          timeout = Math.min(MAX_TIMEOUT, timeout * 2);
+          backoff = now;
+          congested(index, true);
+        }
+        return attempts[index % window] < MAX_ATTEMPTS ? index : -1;
+      }
+      // Nothing timed out after all, so skip the scan until the end of the pump recomputes the expiry.
+      expiry = Long.MAX_VALUE;
+    }
+    int limit = control == null ? window : Math.max(1, Math.min(window, control.window()));
+    if (next <= last && next - cumulative <= limit) {
+      attempts[next % window] = 0;
+      return next;
+    }
+    return 0;
+  }
+}